@@ -0,0 +1,178 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Retries calls that failed for transient reasons, such as throttling or a 5xx response, with decorrelated
+ * jitter backoff. Every attempt first takes a token from an {@link AdaptiveThrottle}, which throttling slows
+ * down for all callers.
+ */
+public class AdaptiveRetry
+{
+    private final AdaptiveThrottle throttle;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final int maximumAttempts;
+    private final long baseDelayMillis;
+    private final long maximumDelayMillis;
+
+    private final LongAdder retries = new LongAdder();
+
+    public AdaptiveRetry(
+            final AdaptiveThrottle throttle,
+            final ScheduledExecutorService scheduler,
+            final Executor executor,
+            final int maximumAttempts,
+            final long baseDelayMillis,
+            final long maximumDelayMillis)
+    {
+        this.throttle = throttle;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.maximumAttempts = maximumAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maximumDelayMillis = maximumDelayMillis;
+    }
+
+    /**
+     * Runs an operation, retrying it while it fails transiently. The returned future fails with the error of
+     * the last attempt.
+     */
+    public <T> CompletableFuture<T> execute(final Supplier<? extends CompletableFuture<T>> operation)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(operation, result, 1, baseDelayMillis);
+        return result;
+    }
+
+    /**
+     * Lets the throttle know about a failure of a call made outside {@link #execute}.
+     */
+    public void recordFailure(final Throwable error)
+    {
+        if(isThrottling(unwrap(error)))
+        {
+            throttle.onThrottled();
+        }
+    }
+
+    public long getRetryCount()
+    {
+        return retries.sum();
+    }
+
+    public AdaptiveThrottle getThrottle()
+    {
+        return throttle;
+    }
+
+    private <T> void attempt(
+            final Supplier<? extends CompletableFuture<T>> operation,
+            final CompletableFuture<T> result,
+            final int attempt,
+            final long previousDelayMillis)
+    {
+        throttle.acquire().thenCompose(v -> operation.get()).whenComplete((value, e) -> {
+            if(e == null)
+            {
+                result.complete(value);
+                return;
+            }
+
+            final Throwable error = unwrap(e);
+            if(isThrottling(error))
+            {
+                throttle.onThrottled();
+            }
+            if(attempt >= maximumAttempts || !isTransient(error))
+            {
+                result.completeExceptionally(error);
+                return;
+            }
+
+            // Decorrelated jitter: random between the base and three times the previous delay, capped
+            final long delayMillis = Math.min(maximumDelayMillis,
+                    ThreadLocalRandom.current().nextLong(baseDelayMillis, Math.max(baseDelayMillis, previousDelayMillis * 3) + 1));
+            retries.increment();
+            scheduler.schedule(
+                    () -> executor.execute(() -> attempt(operation, result, attempt + 1, delayMillis)),
+                    delayMillis,
+                    TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Whether the service rejected a call because of the request rate.
+     */
+    public static boolean isThrottling(final Throwable error)
+    {
+        if(!(error instanceof AmazonServiceException))
+        {
+            return false;
+        }
+
+        final AmazonServiceException ase = (AmazonServiceException) error;
+        final String errorCode = ase.getErrorCode();
+        return "ProvisionedThroughputExceededException".equals(errorCode)
+                || "ThrottlingException".equals(errorCode)
+                || "RequestLimitExceeded".equals(errorCode)
+                || "SlowDown".equals(errorCode)
+                || ase.getStatusCode() == 503;
+    }
+
+    /**
+     * Whether a call that failed with this error may succeed if repeated.
+     */
+    public static boolean isTransient(final Throwable error)
+    {
+        if(error instanceof AmazonServiceException)
+        {
+            return isThrottling(error) || ((AmazonServiceException) error).getStatusCode() >= 500;
+        }
+        // Failures to reach the service at all, e.g. timeouts
+        return error instanceof AmazonClientException && ((AmazonClientException) error).isRetryable();
+    }
+
+    private static Throwable unwrap(final Throwable error)
+    {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side token bucket whose rate adapts to throttling, increasing additively while calls succeed and
+ * decreasing multiplicatively whenever the service throttles (AIMD). This keeps the request rate close to
+ * what the service can take, instead of alternating between overload and backing off.
+ * <p>
+ * The rate is decreased at most once per second: calls in flight when the service starts throttling come back
+ * throttled together, and halving the rate for each of them would collapse it far below what the service can take.
+ */
+public class AdaptiveThrottle
+{
+    private static final double DECREASE_FACTOR = 0.5;
+
+    /**
+     * Fraction of the maximum rate regained per second without throttling.
+     */
+    private static final double INCREASE_PER_SECOND = 0.02;
+
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maximumRate;
+    private final double minimumRate;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long lastDecrease = lastRefill - DECREASE_INTERVAL_NANOS;
+
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+
+    /**
+     * @param maximumRate calls per second allowed while the service does not throttle
+     * @param scheduler   delays callers that have to wait for a token
+     * @param executor    runs callers once their token is available
+     */
+    public AdaptiveThrottle(final double maximumRate, final ScheduledExecutorService scheduler, final Executor executor)
+    {
+        this.maximumRate = maximumRate;
+        this.minimumRate = Math.max(1, maximumRate / 1000);
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.rate = maximumRate;
+        this.tokens = maximumRate;
+    }
+
+    /**
+     * Completes once the caller may make a call.
+     */
+    public CompletableFuture<Void> acquire()
+    {
+        final long delayNanos = reserve();
+        if(delayNanos <= 0)
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        delayed.increment();
+        final CompletableFuture<Void> token = new CompletableFuture<>();
+        scheduler.schedule(() -> executor.execute(() -> token.complete(null)), delayNanos, TimeUnit.NANOSECONDS);
+        return token;
+    }
+
+    /**
+     * Slows the rate down after the service has throttled a call, unless it was already slowed down within the last second.
+     */
+    public synchronized void onThrottled()
+    {
+        throttled.increment();
+        refill();
+        if(lastRefill - lastDecrease < DECREASE_INTERVAL_NANOS)
+        {
+            return;
+        }
+        lastDecrease = lastRefill;
+        rate = Math.max(minimumRate, rate * DECREASE_FACTOR);
+        tokens = Math.min(tokens, rate);
+    }
+
+    public synchronized double getRate()
+    {
+        refill();
+        return rate;
+    }
+
+    public long getThrottledCount()
+    {
+        return throttled.sum();
+    }
+
+    /**
+     * Number of calls that had to wait for a token.
+     */
+    public long getDelayedCount()
+    {
+        return delayed.sum();
+    }
+
+    /**
+     * Takes a token, going into debt if there is none, and returns how long the caller must wait for it.
+     */
+    private synchronized long reserve()
+    {
+        refill();
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void refill()
+    {
+        final long now = System.nanoTime();
+        final double elapsedSeconds = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastRefill = now;
+
+        rate = Math.min(maximumRate, rate + maximumRate * INCREASE_PER_SECOND * elapsedSeconds);
+        // At most a second worth of calls can burst
+        tokens = Math.min(rate, tokens + rate * elapsedSeconds);
+    }
+}
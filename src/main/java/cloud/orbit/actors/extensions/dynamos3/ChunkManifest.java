@@ -0,0 +1,114 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+/**
+ * Describes a state split across several DynamoDB items, recorded in the actor's own item in place of the state.
+ */
+public class ChunkManifest
+{
+    private String version;
+    private int count;
+    private int size;
+    private CompressionCodec codec;
+
+    /**
+     * Distinguishes the chunks of one write from those of the next, so a new set can be written in full before
+     * the manifest is switched over to it.
+     */
+    public String getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion(final String version)
+    {
+        this.version = version;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public void setCount(final int count)
+    {
+        this.count = count;
+    }
+
+    /**
+     * The size of the stored payload in bytes, across all chunks.
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    public void setSize(final int size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * The codec the payload was compressed with, {@code null} if it is not compressed.
+     */
+    public CompressionCodec getCodec()
+    {
+        return codec;
+    }
+
+    public void setCodec(final CompressionCodec codec)
+    {
+        this.codec = codec;
+    }
+
+    public ChunkManifest withVersion(final String version)
+    {
+        setVersion(version);
+        return this;
+    }
+
+    public ChunkManifest withCount(final int count)
+    {
+        setCount(count);
+        return this;
+    }
+
+    public ChunkManifest withSize(final int size)
+    {
+        setSize(size);
+        return this;
+    }
+
+    public ChunkManifest withCodec(final CompressionCodec codec)
+    {
+        setCodec(codec);
+        return this;
+    }
+}
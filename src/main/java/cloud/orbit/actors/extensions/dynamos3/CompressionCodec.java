@@ -0,0 +1,184 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression applied to serialized state before it is stored. The codec is recorded next to the data, so
+ * states written with different codecs can be read side by side.
+ */
+public enum CompressionCodec
+{
+    NONE(null)
+            {
+                @Override
+                public OutputStream compress(final OutputStream out, final int level)
+                {
+                    return out;
+                }
+
+                @Override
+                public InputStream decompress(final InputStream in)
+                {
+                    return in;
+                }
+            },
+
+    DEFLATE("deflate")
+            {
+                @Override
+                public OutputStream compress(final OutputStream out, final int level)
+                {
+                    final Deflater deflater = new Deflater(level);
+                    return new DeflaterOutputStream(out, deflater)
+                    {
+                        @Override
+                        public void close() throws IOException
+                        {
+                            try
+                            {
+                                super.close();
+                            }
+                            finally
+                            {
+                                deflater.end();
+                            }
+                        }
+                    };
+                }
+
+                @Override
+                public InputStream decompress(final InputStream in)
+                {
+                    return new InflaterInputStream(in);
+                }
+            },
+
+    GZIP("gzip")
+            {
+                @Override
+                public OutputStream compress(final OutputStream out, final int level) throws IOException
+                {
+                    return new GZIPOutputStream(out)
+                    {
+                        {
+                            def.setLevel(level);
+                        }
+                    };
+                }
+
+                @Override
+                public InputStream decompress(final InputStream in) throws IOException
+                {
+                    return new GZIPInputStream(in);
+                }
+            },
+
+    /**
+     * LZ4 frame format. Trades compression ratio for speed and ignores the compression level.
+     */
+    LZ4("x-lz4")
+            {
+                @Override
+                public OutputStream compress(final OutputStream out, final int level) throws IOException
+                {
+                    return new LZ4FrameOutputStream(out);
+                }
+
+                @Override
+                public InputStream decompress(final InputStream in) throws IOException
+                {
+                    return new LZ4FrameInputStream(in);
+                }
+            };
+
+    private final String contentEncoding;
+
+    CompressionCodec(final String contentEncoding)
+    {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Wraps {@code out} so data written to the returned stream reaches it compressed. Closing the returned
+     * stream closes {@code out}.
+     */
+    public abstract OutputStream compress(final OutputStream out, final int level) throws IOException;
+
+    /**
+     * Wraps {@code in} so data read from the returned stream is decompressed.
+     */
+    public abstract InputStream decompress(final InputStream in) throws IOException;
+
+    public byte[] compress(final byte[] data, final int level) throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(32, data.length / 4));
+        try (OutputStream out = compress(buffer, level))
+        {
+            out.write(data);
+        }
+        return buffer.toByteArray();
+    }
+
+    public byte[] decompress(final byte[] data) throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length * 4);
+        try (InputStream in = decompress(new ByteArrayInputStream(data)))
+        {
+            final byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1)
+            {
+                buffer.write(chunk, 0, read);
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * The HTTP Content-Encoding matching this codec, or {@code null} when the data is not compressed.
+     */
+    public String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+}
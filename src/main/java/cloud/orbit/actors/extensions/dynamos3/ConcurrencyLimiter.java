@@ -0,0 +1,229 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounds how many calls to a storage tier are in flight. Callers beyond the limit wait in a bounded queue,
+ * or fail straight away, depending on the {@link Policy}. Permits are handed to waiting callers on the given
+ * executor, which therefore never runs more tasks at once than the limit allows.
+ */
+public class ConcurrencyLimiter
+{
+    public enum Policy
+    {
+        /**
+         * Callers queue for a permit, failing only once the queue is full.
+         */
+        WAIT,
+
+        /**
+         * Callers fail as soon as no permit is free.
+         */
+        FAIL_FAST
+    }
+
+    private static class Waiter
+    {
+        private final CompletableFuture<Void> permit = new CompletableFuture<>();
+        private final long enqueued = System.nanoTime();
+    }
+
+    private final String name;
+    private final int maximumConcurrency;
+    private final int maximumQueueLength;
+    private final Policy policy;
+    private final Executor executor;
+
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    private int active;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maximumWaitNanos = new AtomicLong();
+    private volatile int maximumQueueDepth;
+
+    public ConcurrencyLimiter(
+            final String name,
+            final int maximumConcurrency,
+            final int maximumQueueLength,
+            final Policy policy,
+            final Executor executor)
+    {
+        this.name = name;
+        this.maximumConcurrency = maximumConcurrency;
+        this.maximumQueueLength = maximumQueueLength;
+        this.policy = policy;
+        this.executor = executor;
+    }
+
+    /**
+     * Completes once a permit is held, which must then be given back with {@link #release}. Fails with a
+     * {@link RejectedExecutionException} if the limiter is at capacity.
+     */
+    public CompletableFuture<Void> acquire()
+    {
+        final Waiter waiter;
+        synchronized (queue)
+        {
+            if(active < maximumConcurrency && queue.isEmpty())
+            {
+                active++;
+                acquired.increment();
+                return CompletableFuture.completedFuture(null);
+            }
+            if(policy == Policy.FAIL_FAST || queue.size() >= maximumQueueLength)
+            {
+                rejected.increment();
+                final CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new RejectedExecutionException(name + " is at capacity"));
+                return failed;
+            }
+            waiter = new Waiter();
+            queue.add(waiter);
+            maximumQueueDepth = Math.max(maximumQueueDepth, queue.size());
+        }
+        return waiter.permit;
+    }
+
+    /**
+     * Takes a permit if one is free straight away, never queueing, which must then be given back with
+     * {@link #release}.
+     */
+    public boolean tryAcquire()
+    {
+        synchronized (queue)
+        {
+            if(active < maximumConcurrency && queue.isEmpty())
+            {
+                active++;
+                acquired.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public void release()
+    {
+        final Waiter next;
+        synchronized (queue)
+        {
+            next = queue.poll();
+            if(next == null)
+            {
+                active--;
+                return;
+            }
+            // The permit passes straight to the next waiter
+        }
+
+        final long waitNanos = System.nanoTime() - next.enqueued;
+        acquired.increment();
+        waited.increment();
+        totalWaitNanos.add(waitNanos);
+        maximumWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        executor.execute(() -> next.permit.complete(null));
+    }
+
+    /**
+     * Runs an operation while holding a permit.
+     */
+    public <T> CompletableFuture<T> submit(final Supplier<? extends CompletableFuture<T>> operation)
+    {
+        return acquire().thenCompose(v -> {
+            final CompletableFuture<T> result;
+            try
+            {
+                result = operation.get();
+            }
+            catch(RuntimeException e)
+            {
+                release();
+                throw e;
+            }
+            return result.whenComplete((r, e) -> release());
+        });
+    }
+
+    public int getActiveCount()
+    {
+        synchronized (queue)
+        {
+            return active;
+        }
+    }
+
+    public int getQueueLength()
+    {
+        synchronized (queue)
+        {
+            return queue.size();
+        }
+    }
+
+    public int getMaximumQueueLength()
+    {
+        return maximumQueueDepth;
+    }
+
+    public long getAcquiredCount()
+    {
+        return acquired.sum();
+    }
+
+    public long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * Average time callers that had to queue waited for their permit.
+     */
+    public double getAverageWaitMillis()
+    {
+        final long count = waited.sum();
+        return count == 0 ? 0 : (double) totalWaitNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public long getMaximumWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maximumWaitNanos.get());
+    }
+}
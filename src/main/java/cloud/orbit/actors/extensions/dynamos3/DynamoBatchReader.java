@@ -0,0 +1,271 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers reads of the same table that arrive within a short window and sends them together with
+ * BatchGetItem. Each read completes on its own, on the callback executor, so that follow-up work such as
+ * fetching S3 payloads runs in parallel.
+ */
+public class DynamoBatchReader
+{
+    /**
+     * Most keys DynamoDB accepts in one BatchGetItem.
+     */
+    public static final int MAXIMUM_BATCH_SIZE = 100;
+
+    private static final int MAXIMUM_ATTEMPTS = 8;
+    private static final long BASE_BACKOFF_MILLIS = 20;
+
+    private static class Batch
+    {
+        private final String tableName;
+        private final Map<String, List<CompletableFuture<Item>>> reads = new LinkedHashMap<>();
+
+        private Batch(final String tableName)
+        {
+            this.tableName = tableName;
+        }
+    }
+
+    private final DynamoDB dynamoDB;
+    private final ConcurrencyLimiter limiter;
+    private final AdaptiveThrottle throttle;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final Executor callbackExecutor;
+    private final long windowMillis;
+
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    /**
+     * @param limiter          bounds the batches in flight, each taking one permit like any other call
+     * @param throttle         paces the batches, each taking one token
+     * @param scheduler        closes batches once their window has passed, and delays retries
+     * @param executor         sends the batches, which blocks
+     * @param callbackExecutor completes the reads
+     * @param windowMillis     how long a batch waits for more reads after its first one
+     */
+    public DynamoBatchReader(
+            final DynamoDB dynamoDB,
+            final ConcurrencyLimiter limiter,
+            final AdaptiveThrottle throttle,
+            final ScheduledExecutorService scheduler,
+            final Executor executor,
+            final Executor callbackExecutor,
+            final long windowMillis)
+    {
+        this.dynamoDB = dynamoDB;
+        this.limiter = limiter;
+        this.throttle = throttle;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.callbackExecutor = callbackExecutor;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Reads an item with a consistent read, completing with {@code null} if there is none. If the batch fails,
+     * e.g. because the table does not exist, the read completes with the error.
+     */
+    public CompletableFuture<Item> get(final String tableName, final String itemId)
+    {
+        final CompletableFuture<Item> result = new CompletableFuture<>();
+        Batch fullBatch = null;
+
+        synchronized (openBatches)
+        {
+            Batch batch = openBatches.get(tableName);
+            if(batch == null)
+            {
+                batch = new Batch(tableName);
+                openBatches.put(tableName, batch);
+                final Batch scheduledBatch = batch;
+                scheduler.schedule(() -> close(scheduledBatch), windowMillis, TimeUnit.MILLISECONDS);
+            }
+
+            // A key may only appear once in a request, so reads of the same item share it
+            batch.reads.computeIfAbsent(itemId, k -> new ArrayList<>(1)).add(result);
+
+            if(batch.reads.size() >= MAXIMUM_BATCH_SIZE)
+            {
+                openBatches.remove(tableName);
+                fullBatch = batch;
+            }
+        }
+
+        if(fullBatch != null)
+        {
+            send(fullBatch, fullBatch.reads, 0);
+        }
+        return result;
+    }
+
+    private void close(final Batch batch)
+    {
+        synchronized (openBatches)
+        {
+            if(!openBatches.remove(batch.tableName, batch))
+            {
+                // Already sent when it filled up
+                return;
+            }
+        }
+        send(batch, batch.reads, 0);
+    }
+
+    private void send(final Batch batch, final Map<String, List<CompletableFuture<Item>>> reads, final int attempt)
+    {
+        final TableKeysAndAttributes keys = new TableKeysAndAttributes(batch.tableName).withConsistentRead(true);
+        for(final String itemId : reads.keySet())
+        {
+            keys.addHashOnlyPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, itemId);
+        }
+
+        limiter.submit(() -> throttle.acquire().thenApplyAsync(v -> dynamoDB.batchGetItem(keys), executor))
+                .whenComplete((outcome, e) -> {
+                    if(e != null)
+                    {
+                        final Throwable error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        if(AdaptiveRetry.isThrottling(error))
+                        {
+                            throttle.onThrottled();
+                        }
+                        for(final List<CompletableFuture<Item>> results : reads.values())
+                        {
+                            complete(results, null, error);
+                        }
+                    }
+                    else
+                    {
+                        receive(batch, reads, outcome, attempt);
+                    }
+                });
+    }
+
+    private void receive(
+            final Batch batch,
+            final Map<String, List<CompletableFuture<Item>>> reads,
+            final BatchGetItemOutcome outcome,
+            final int attempt)
+    {
+        final Map<String, Item> found = new HashMap<>();
+        final List<Item> items = outcome.getTableItems().get(batch.tableName);
+        for(final Item item : items != null ? items : Collections.<Item>emptyList())
+        {
+            found.put(item.getString(DynamoDBUtils.FIELD_NAME_PRIMARY_ID), item);
+        }
+
+        final Map<String, List<CompletableFuture<Item>>> unprocessed = new LinkedHashMap<>();
+        final KeysAndAttributes unprocessedKeys = outcome.getUnprocessedKeys() != null
+                ? outcome.getUnprocessedKeys().get(batch.tableName)
+                : null;
+        if(unprocessedKeys != null)
+        {
+            for(final Map<String, AttributeValue> key : unprocessedKeys.getKeys())
+            {
+                final String itemId = key.get(DynamoDBUtils.FIELD_NAME_PRIMARY_ID).getS();
+                unprocessed.put(itemId, reads.get(itemId));
+            }
+        }
+
+        for(final Map.Entry<String, List<CompletableFuture<Item>>> entry : reads.entrySet())
+        {
+            if(!unprocessed.containsKey(entry.getKey()))
+            {
+                complete(entry.getValue(), found.get(entry.getKey()), null);
+            }
+        }
+
+        if(unprocessed.isEmpty())
+        {
+            return;
+        }
+        if(unprocessed.size() < reads.size())
+        {
+            // Keys are also left over once a response reaches its size limit, which is no reason to wait
+            send(batch, unprocessed, attempt);
+            return;
+        }
+        if(attempt + 1 >= MAXIMUM_ATTEMPTS)
+        {
+            final IllegalStateException error = new IllegalStateException(
+                    "BatchGetItem left keys unprocessed after " + MAXIMUM_ATTEMPTS + " attempts");
+            for(final List<CompletableFuture<Item>> results : unprocessed.values())
+            {
+                complete(results, null, error);
+            }
+            return;
+        }
+
+        // No key was read, so the table is throttling: back off with jitter before trying again
+        throttle.onThrottled();
+        final long backoff = ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MILLIS << attempt) + 1;
+        scheduler.schedule(() -> send(batch, unprocessed, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private void complete(final List<CompletableFuture<Item>> results, final Item item, final Throwable error)
+    {
+        for(final CompletableFuture<Item> result : results)
+        {
+            callbackExecutor.execute(() -> {
+                if(error == null)
+                {
+                    result.complete(item);
+                }
+                else
+                {
+                    result.completeExceptionally(error);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Gathers puts to the same table that arrive within a short window and sends them together with
+ * BatchWriteItem. Each put completes on its own once its item has been written.
+ */
+public class DynamoBatchWriter
+{
+    /**
+     * Most items DynamoDB accepts in one BatchWriteItem. As an item is at most 400 KB, a full batch stays well
+     * below the 16 MB request limit.
+     */
+    public static final int MAXIMUM_BATCH_SIZE = 25;
+
+    private static final int MAXIMUM_ATTEMPTS = 8;
+    private static final long BASE_BACKOFF_MILLIS = 20;
+
+    private static class PendingPut
+    {
+        private Item item;
+        private Supplier<CompletableFuture<Void>> fallback;
+        private final List<CompletableFuture<Void>> results = new ArrayList<>(1);
+
+        private void complete(final Throwable error)
+        {
+            for(final CompletableFuture<Void> result : results)
+            {
+                if(error == null)
+                {
+                    result.complete(null);
+                }
+                else
+                {
+                    result.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+    private static class Batch
+    {
+        private final String tableName;
+        private final Map<String, PendingPut> puts = new LinkedHashMap<>();
+
+        private Batch(final String tableName)
+        {
+            this.tableName = tableName;
+        }
+    }
+
+    private final DynamoDB dynamoDB;
+    private final ConcurrencyLimiter limiter;
+    private final AdaptiveThrottle throttle;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final long windowMillis;
+
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    /**
+     * @param limiter      bounds the batches in flight, each taking one permit like any other call
+     * @param throttle     paces the batches, each taking one token
+     * @param scheduler    closes batches once their window has passed, and delays retries
+     * @param executor     sends the batches, which blocks
+     * @param windowMillis how long a batch waits for more puts after its first one
+     */
+    public DynamoBatchWriter(
+            final DynamoDB dynamoDB,
+            final ConcurrencyLimiter limiter,
+            final AdaptiveThrottle throttle,
+            final ScheduledExecutorService scheduler,
+            final Executor executor,
+            final long windowMillis)
+    {
+        this.dynamoDB = dynamoDB;
+        this.limiter = limiter;
+        this.throttle = throttle;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Queues an item to be put. Should the batch not get it written, {@code fallback} is used to write it on
+     * its own, which also covers tables that do not exist yet. A later put of the same item in the same batch
+     * replaces it, and both complete once the later one is written.
+     */
+    public CompletableFuture<Void> put(
+            final String tableName,
+            final String itemId,
+            final Item item,
+            final Supplier<CompletableFuture<Void>> fallback)
+    {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        Batch fullBatch = null;
+
+        synchronized (openBatches)
+        {
+            Batch batch = openBatches.get(tableName);
+            if(batch == null)
+            {
+                batch = new Batch(tableName);
+                openBatches.put(tableName, batch);
+                final Batch scheduledBatch = batch;
+                scheduler.schedule(() -> close(scheduledBatch), windowMillis, TimeUnit.MILLISECONDS);
+            }
+
+            final PendingPut put = batch.puts.computeIfAbsent(itemId, k -> new PendingPut());
+            put.item = item;
+            put.fallback = fallback;
+            put.results.add(result);
+
+            if(batch.puts.size() >= MAXIMUM_BATCH_SIZE)
+            {
+                openBatches.remove(tableName);
+                fullBatch = batch;
+            }
+        }
+
+        if(fullBatch != null)
+        {
+            send(fullBatch, fullBatch.puts, 0);
+        }
+        return result;
+    }
+
+    private void close(final Batch batch)
+    {
+        synchronized (openBatches)
+        {
+            if(!openBatches.remove(batch.tableName, batch))
+            {
+                // Already sent when it filled up
+                return;
+            }
+        }
+        send(batch, batch.puts, 0);
+    }
+
+    private void send(final Batch batch, final Map<String, PendingPut> puts, final int attempt)
+    {
+        final List<Item> items = new ArrayList<>(puts.size());
+        for(final PendingPut put : puts.values())
+        {
+            items.add(put.item);
+        }
+
+        limiter.submit(() -> throttle.acquire().thenApplyAsync(
+                v -> dynamoDB.batchWriteItem(new TableWriteItems(batch.tableName).withItemsToPut(items)), executor))
+                .whenComplete((outcome, e) -> {
+                    if(e != null)
+                    {
+                        fail(puts, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                    else
+                    {
+                        receive(batch, puts, collectUnprocessed(batch.tableName, puts, outcome.getUnprocessedItems()), attempt);
+                    }
+                });
+    }
+
+    private void fail(final Map<String, PendingPut> puts, final Throwable error)
+    {
+        if(error instanceof AmazonServiceException)
+        {
+            if(AdaptiveRetry.isThrottling(error))
+            {
+                throttle.onThrottled();
+            }
+            // E.g. the table does not exist yet or an item is invalid, which individual writes deal with
+            fallBack(puts);
+            return;
+        }
+        for(final PendingPut put : puts.values())
+        {
+            put.complete(error);
+        }
+    }
+
+    private void receive(
+            final Batch batch,
+            final Map<String, PendingPut> puts,
+            final Map<String, PendingPut> unprocessed,
+            final int attempt)
+    {
+        for(final Map.Entry<String, PendingPut> entry : puts.entrySet())
+        {
+            if(!unprocessed.containsKey(entry.getKey()))
+            {
+                entry.getValue().complete(null);
+            }
+        }
+
+        if(unprocessed.isEmpty())
+        {
+            return;
+        }
+        if(unprocessed.size() < puts.size())
+        {
+            // Progress was made, so the rest is sent again straight away
+            send(batch, unprocessed, attempt);
+            return;
+        }
+        if(attempt + 1 >= MAXIMUM_ATTEMPTS)
+        {
+            fallBack(unprocessed);
+            return;
+        }
+
+        // Nothing was written, so the table is throttling: back off with jitter before trying again
+        throttle.onThrottled();
+        final long backoff = ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MILLIS << attempt) + 1;
+        scheduler.schedule(() -> send(batch, unprocessed, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private Map<String, PendingPut> collectUnprocessed(
+            final String tableName,
+            final Map<String, PendingPut> puts,
+            final Map<String, List<WriteRequest>> unprocessedItems)
+    {
+        final List<WriteRequest> requests = unprocessedItems != null ? unprocessedItems.get(tableName) : null;
+        if(requests == null || requests.isEmpty())
+        {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, PendingPut> unprocessed = new LinkedHashMap<>();
+        for(final WriteRequest request : requests)
+        {
+            final String itemId = request.getPutRequest().getItem().get(DynamoDBUtils.FIELD_NAME_PRIMARY_ID).getS();
+            unprocessed.put(itemId, puts.get(itemId));
+        }
+        return unprocessed;
+    }
+
+    private void fallBack(final Map<String, PendingPut> puts)
+    {
+        for(final PendingPut put : puts.values())
+        {
+            try
+            {
+                put.fallback.get().whenComplete((r, e) -> put.complete(e));
+            }
+            catch(RuntimeException e)
+            {
+                put.complete(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores payloads too large for one DynamoDB item as a set of chunk items next to the actor's own item, as an
+ * alternative to S3 for states of moderate size. Chunk items share the table and are keyed by the actor's item
+ * id with a version and chunk index appended; a {@link ChunkManifest} in the actor's item records which set is
+ * current. Each batch is sent on the calling thread, or on the executor when it is retried after a back off.
+ */
+public class DynamoChunkStore
+{
+    /**
+     * Default size of each chunk, leaving room under {@link DynamoDBS3Utils#DYNAMODB_MAX_ITEM_SIZE} for the key
+     * and attribute names.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 350 * 1024;
+
+    private static final int MAXIMUM_WRITE_BATCH_SIZE = DynamoBatchWriter.MAXIMUM_BATCH_SIZE;
+    private static final int MAXIMUM_READ_BATCH_SIZE = DynamoBatchReader.MAXIMUM_BATCH_SIZE;
+    private static final int MAXIMUM_ATTEMPTS = 8;
+    private static final long BASE_BACKOFF_MILLIS = 20;
+
+    private final DynamoDB dynamoDB;
+    private final int chunkSize;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+
+    /**
+     * @param scheduler delays batches retried after the service throttled
+     * @param executor  sends the retried batches
+     */
+    public DynamoChunkStore(
+            final DynamoDB dynamoDB,
+            final int chunkSize,
+            final ScheduledExecutorService scheduler,
+            final Executor executor)
+    {
+        this.dynamoDB = dynamoDB;
+        this.chunkSize = chunkSize;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Generates the id of a chunk item, which never collides with an actor's item id.
+     */
+    public static String chunkId(final String itemId, final String version, final int index)
+    {
+        return itemId + "/_chunk/" + version + "/" + index;
+    }
+
+    /**
+     * Splits a payload into {@code chunkSize} pieces.
+     */
+    public static List<byte[]> split(final byte[] payload, final int chunkSize)
+    {
+        final List<byte[]> chunks = new ArrayList<>(payload.length / chunkSize + 1);
+        for(int offset = 0; offset < payload.length; offset += chunkSize)
+        {
+            chunks.add(Arrays.copyOfRange(payload, offset, Math.min(payload.length, offset + chunkSize)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Joins the chunks read for {@code manifest} back into its payload, failing if any is missing.
+     */
+    public static byte[] join(final ChunkManifest manifest, final List<byte[]> chunks)
+    {
+        final byte[] payload = new byte[manifest.getSize()];
+        int offset = 0;
+        for(int i = 0; i < manifest.getCount(); i++)
+        {
+            final byte[] chunk = i < chunks.size() ? chunks.get(i) : null;
+            if(chunk == null || offset + chunk.length > payload.length)
+            {
+                throw new IllegalStateException("Chunk " + i + " of version " + manifest.getVersion() + " is missing or malformed");
+            }
+            System.arraycopy(chunk, 0, payload, offset, chunk.length);
+            offset += chunk.length;
+        }
+        if(offset != payload.length)
+        {
+            throw new IllegalStateException("Chunks of version " + manifest.getVersion() + " hold " + offset + " of " + payload.length + " bytes");
+        }
+        return payload;
+    }
+
+    /**
+     * Writes a payload as a new set of chunks, which nothing refers to until the returned manifest is stored in
+     * the actor's item. A failed write removes whatever chunks it got to write.
+     */
+    public CompletableFuture<ChunkManifest> write(final String tableName, final String itemId, final byte[] payload, final CompressionCodec codec)
+    {
+        final List<byte[]> chunks = split(payload, chunkSize);
+        final ChunkManifest manifest = new ChunkManifest()
+                .withVersion(UUID.randomUUID().toString())
+                .withCount(chunks.size())
+                .withSize(payload.length)
+                .withCodec(codec);
+
+        final CompletableFuture<ChunkManifest> result = new CompletableFuture<>();
+        writeChunks(tableName, itemId, manifest, chunks, 0).whenComplete((v, e) -> {
+            if(e == null)
+            {
+                result.complete(manifest);
+                return;
+            }
+            final Throwable error = unwrap(e);
+            delete(tableName, itemId, manifest).whenComplete((deleted, cleanupError) -> {
+                if(cleanupError != null)
+                {
+                    error.addSuppressed(unwrap(cleanupError));
+                }
+                result.completeExceptionally(error);
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Reads the payload a manifest describes, with consistent reads. Completes with null if any chunk is gone,
+     * as happens when a write replaced the manifest and deleted its chunks after it was read.
+     */
+    public CompletableFuture<byte[]> read(final String tableName, final String itemId, final ChunkManifest manifest)
+    {
+        final Map<String, Integer> indexes = new HashMap<>();
+        final List<byte[]> chunks = new ArrayList<>(manifest.getCount());
+        for(int i = 0; i < manifest.getCount(); i++)
+        {
+            indexes.put(chunkId(itemId, manifest.getVersion(), i), i);
+            chunks.add(null);
+        }
+
+        return readChunks(tableName, itemId, manifest, indexes, chunks, 0)
+                .thenApply(v -> chunks.contains(null) ? null : join(manifest, chunks));
+    }
+
+    /**
+     * Deletes the chunks a manifest describes. Chunks that do not exist are ignored.
+     */
+    public CompletableFuture<Void> delete(final String tableName, final String itemId, final ChunkManifest manifest)
+    {
+        return deleteChunks(tableName, itemId, manifest, 0);
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    private CompletableFuture<Void> writeChunks(
+            final String tableName,
+            final String itemId,
+            final ChunkManifest manifest,
+            final List<byte[]> chunks,
+            final int first)
+    {
+        if(first >= chunks.size())
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final TableWriteItems writes = new TableWriteItems(tableName);
+        for(int i = first; i < Math.min(chunks.size(), first + MAXIMUM_WRITE_BATCH_SIZE); i++)
+        {
+            writes.addItemToPut(new Item()
+                    .withPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, chunkId(itemId, manifest.getVersion(), i))
+                    .withBinary(DynamoDBS3Utils.FIELD_NAME_CHUNK, chunks.get(i)));
+        }
+        return writeBatch(writes)
+                .thenCompose(v -> writeChunks(tableName, itemId, manifest, chunks, first + MAXIMUM_WRITE_BATCH_SIZE));
+    }
+
+    private CompletableFuture<Void> deleteChunks(
+            final String tableName,
+            final String itemId,
+            final ChunkManifest manifest,
+            final int first)
+    {
+        if(first >= manifest.getCount())
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final TableWriteItems deletes = new TableWriteItems(tableName);
+        for(int i = first; i < Math.min(manifest.getCount(), first + MAXIMUM_WRITE_BATCH_SIZE); i++)
+        {
+            deletes.addHashOnlyPrimaryKeyToDelete(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, chunkId(itemId, manifest.getVersion(), i));
+        }
+        return writeBatch(deletes)
+                .thenCompose(v -> deleteChunks(tableName, itemId, manifest, first + MAXIMUM_WRITE_BATCH_SIZE));
+    }
+
+    private CompletableFuture<Void> readChunks(
+            final String tableName,
+            final String itemId,
+            final ChunkManifest manifest,
+            final Map<String, Integer> indexes,
+            final List<byte[]> chunks,
+            final int first)
+    {
+        if(first >= manifest.getCount())
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final TableKeysAndAttributes keys = new TableKeysAndAttributes(tableName).withConsistentRead(true);
+        for(int i = first; i < Math.min(manifest.getCount(), first + MAXIMUM_READ_BATCH_SIZE); i++)
+        {
+            keys.addHashOnlyPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, chunkId(itemId, manifest.getVersion(), i));
+        }
+
+        final CompletableFuture<Void> batch = new CompletableFuture<>();
+        attempt(batch, () -> receive(tableName, indexes, chunks, dynamoDB.batchGetItem(keys), 1, batch));
+        return batch.thenCompose(v -> readChunks(tableName, itemId, manifest, indexes, chunks, first + MAXIMUM_READ_BATCH_SIZE));
+    }
+
+    private void receive(
+            final String tableName,
+            final Map<String, Integer> indexes,
+            final List<byte[]> chunks,
+            final BatchGetItemOutcome outcome,
+            final int attempt,
+            final CompletableFuture<Void> batch)
+    {
+        final List<Item> items = outcome.getTableItems().get(tableName);
+        if(items != null)
+        {
+            for(final Item item : items)
+            {
+                final Integer index = indexes.get(item.getString(DynamoDBUtils.FIELD_NAME_PRIMARY_ID));
+                if(index != null)
+                {
+                    chunks.set(index, item.getBinary(DynamoDBS3Utils.FIELD_NAME_CHUNK));
+                }
+            }
+        }
+
+        final Map<String, KeysAndAttributes> unprocessed = outcome.getUnprocessedKeys();
+        if(unprocessed == null || unprocessed.isEmpty())
+        {
+            batch.complete(null);
+            return;
+        }
+        // Responses are capped at 16MB, so keys are left over without any throttling when nothing came back
+        retry(attempt, items == null || items.isEmpty(), "BatchGetItem", batch, () -> receive(
+                tableName, indexes, chunks, dynamoDB.batchGetItemUnprocessed(unprocessed), attempt + 1, batch));
+    }
+
+    private CompletableFuture<Void> writeBatch(final TableWriteItems writes)
+    {
+        final CompletableFuture<Void> batch = new CompletableFuture<>();
+        attempt(batch, () -> written(dynamoDB.batchWriteItem(writes), 1, batch));
+        return batch;
+    }
+
+    private void written(final BatchWriteItemOutcome outcome, final int attempt, final CompletableFuture<Void> batch)
+    {
+        final Map<String, List<WriteRequest>> unprocessed = outcome.getUnprocessedItems();
+        if(unprocessed == null || unprocessed.isEmpty())
+        {
+            batch.complete(null);
+            return;
+        }
+        retry(attempt, true, "BatchWriteItem", batch, () -> written(
+                dynamoDB.batchWriteItemUnprocessed(unprocessed), attempt + 1, batch));
+    }
+
+    /**
+     * Sends what was left unprocessed again, straight away unless the service was throttling, in which case the
+     * attempt is scheduled after a back off rather than holding up a thread.
+     */
+    private void retry(
+            final int attempt,
+            final boolean throttled,
+            final String operation,
+            final CompletableFuture<Void> batch,
+            final Runnable next)
+    {
+        if(attempt >= MAXIMUM_ATTEMPTS)
+        {
+            batch.completeExceptionally(new IllegalStateException(
+                    operation + " left chunks unprocessed after " + MAXIMUM_ATTEMPTS + " attempts"));
+            return;
+        }
+        if(!throttled)
+        {
+            attempt(batch, next);
+            return;
+        }
+        try
+        {
+            scheduler.schedule(
+                    () -> executor.execute(() -> attempt(batch, next)),
+                    ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MILLIS << attempt) + 1,
+                    TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e)
+        {
+            batch.completeExceptionally(e);
+        }
+    }
+
+    private static void attempt(final CompletableFuture<Void> batch, final Runnable call)
+    {
+        try
+        {
+            call.run();
+        }
+        catch(RuntimeException e)
+        {
+            batch.completeExceptionally(e);
+        }
+    }
+
+    private static Throwable unwrap(final Throwable error)
+    {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
@@ -28,7 +28,198 @@
 
 package cloud.orbit.actors.extensions.dynamos3;
 
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBStateConfiguration;
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+import cloud.orbit.actors.runtime.RemoteReference;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 public class DynamoDBS3Utils
 {
     final static public String FIELD_NAME_S3_LOCATION = "_s3Location";
+    final static public String FIELD_NAME_BINARY_DATA = "_binaryState";
+    final static public String FIELD_NAME_CODEC = "_codec";
+    final static public String FIELD_NAME_STATE_HASH = "_stateHash";
+    final static public String FIELD_NAME_CHUNK_MANIFEST = "_chunks";
+    final static public String FIELD_NAME_CHUNK = "_chunk";
+    final static public String FIELD_NAME_FORMAT = "_format";
+
+    /**
+     * S3 user metadata key recording the codec an object was compressed with.
+     */
+    final static public String METADATA_CODEC = "orbit-codec";
+
+    /**
+     * S3 user metadata key recording the {@link StateFormat} of an object, absent for JSON.
+     */
+    final static public String METADATA_FORMAT = "orbit-format";
+
+    /**
+     * Hard limit DynamoDB places on a single item, attribute names included.
+     */
+    final static public int DYNAMODB_MAX_ITEM_SIZE = 400 * 1024;
+
+    /**
+     * Default estimated item size above which state is written straight to S3. Kept below
+     * {@link #DYNAMODB_MAX_ITEM_SIZE} to leave room for estimation error.
+     */
+    final static public int DEFAULT_INLINE_SIZE_THRESHOLD = 384 * 1024;
+
+    /**
+     * Resolves the table the DynamoDB extension stores states of {@code stateClass} in.
+     */
+    public static String getTableName(final String defaultTableName, final Class<?> stateClass)
+    {
+        final DynamoDBStateConfiguration configuration = stateClass.getAnnotation(DynamoDBStateConfiguration.class);
+        return configuration != null && !configuration.collection().isEmpty()
+                ? configuration.collection()
+                : defaultTableName;
+    }
+
+    /**
+     * Generates the item id the DynamoDB extension stores the state of {@code reference} under.
+     */
+    public static String generateItemId(final RemoteReference<?> reference, final Class<?> stateClass)
+    {
+        final DynamoDBStateConfiguration configuration = stateClass.getAnnotation(DynamoDBStateConfiguration.class);
+        final String idDecoration = configuration != null && !configuration.idDecorationOverride().isEmpty()
+                ? configuration.idDecorationOverride()
+                : RemoteReference.getInterfaceClass(reference).getName();
+
+        return String.valueOf(RemoteReference.getId(reference)) + "/" + idDecoration;
+    }
+
+    /**
+     * Reads the S3 pointer out of {@code item}, or returns {@code null} if its state is stored inline.
+     */
+    public static S3Location readS3Location(final Item item, final ObjectMapper mapper) throws IOException
+    {
+        final String serializedS3Location = item.getJSON(FIELD_NAME_S3_LOCATION);
+        if (serializedS3Location == null)
+        {
+            return null;
+        }
+
+        final S3Location s3Location = new S3Location();
+        mapper.readerForUpdating(s3Location).readValue(serializedS3Location);
+        return s3Location;
+    }
+
+    /**
+     * Reads the chunk manifest out of {@code item}, or returns {@code null} if its state is not stored in chunks.
+     */
+    public static ChunkManifest readChunkManifest(final Item item, final ObjectMapper mapper) throws IOException
+    {
+        final String serializedManifest = item.getJSON(FIELD_NAME_CHUNK_MANIFEST);
+        if (serializedManifest == null)
+        {
+            return null;
+        }
+
+        final ChunkManifest manifest = new ChunkManifest();
+        mapper.readerForUpdating(manifest).readValue(serializedManifest);
+        return manifest;
+    }
+
+    /**
+     * Estimates the size DynamoDB will account for an item holding a single payload attribute, including
+     * the primary id and owning actor type written alongside it. JSON payloads are measured by their encoded
+     * length, which is only an approximation of the document DynamoDB actually stores: quotes and punctuation
+     * make most states come out smaller, but short numbers, stored as DynamoDB numbers, and the per element
+     * overhead of lists and maps can make number heavy states come out larger. DynamoDB rejecting an item
+     * estimated below the threshold is therefore expected now and then, see
+     * {@link StateTierHistory#recordRejected}.
+     */
+    public static int estimateItemSize(
+            final String itemId,
+            final Class<?> owningActorType,
+            final String payloadAttributeName,
+            final int payloadSize)
+    {
+        return utf8Length(DynamoDBUtils.FIELD_NAME_PRIMARY_ID) + utf8Length(itemId)
+                + utf8Length(DynamoDBUtils.FIELD_NAME_OWNING_ACTOR_TYPE) + utf8Length(owningActorType.getName())
+                + utf8Length(payloadAttributeName) + payloadSize;
+    }
+
+    /**
+     * Reads {@code in} to the end, so the underlying S3 connection can be reused instead of aborted.
+     */
+    public static void drain(final InputStream in) throws IOException
+    {
+        final byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1)
+        {
+            // discard
+        }
+    }
+
+    /**
+     * Counts the bytes {@code value} occupies once UTF-8 encoded, without encoding it.
+     */
+    public static int utf8Length(final CharSequence value)
+    {
+        final int length = value.length();
+        int size = 0;
+        for (int i = 0; i < length; i++)
+        {
+            final char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                size += 1;
+            }
+            else if (c < 0x800)
+            {
+                size += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                size += 4;
+                i++;
+            }
+            else
+            {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Creates the digest used to address S3 payloads by their content.
+     */
+    public static MessageDigest newContentDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String contentHash(final byte[] payload)
+    {
+        return toHex(newContentDigest().digest(payload));
+    }
+
+    public static String toHex(final byte[] bytes)
+    {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++)
+        {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
 }
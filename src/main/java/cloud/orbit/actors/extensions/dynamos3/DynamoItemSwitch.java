@@ -0,0 +1,84 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+
+import java.util.Collections;
+
+/**
+ * Switches the item of an actor over to a new state, such as a pointer to a new S3 object or set of chunks,
+ * without replacing a state written concurrently by someone else.
+ */
+public class DynamoItemSwitch
+{
+    private final DynamoDB dynamoDB;
+
+    public DynamoItemSwitch(final DynamoDB dynamoDB)
+    {
+        this.dynamoDB = dynamoDB;
+    }
+
+    /**
+     * Puts {@code item} in place of the actor's item, provided that item still holds the state last seen
+     * hashing to {@code expectedHash}, or already holds the state of {@code item}. The latter lets a retried
+     * switch succeed after an earlier attempt went through but its response was lost, rather than have the
+     * caller discard what the item now points to. Without an expected hash the item is always replaced.
+     *
+     * @return the item replaced, {@code null} if there was none
+     * @throws ConditionalCheckFailedException if the item holds some other state
+     */
+    public Item replace(final String tableName, final Item item, final String expectedHash)
+    {
+        final PutItemSpec putItemSpec = new PutItemSpec().withItem(item).withReturnValues(ReturnValue.ALL_OLD);
+
+        if(expectedHash != null)
+        {
+            final String stateHash = item.getString(DynamoDBS3Utils.FIELD_NAME_STATE_HASH);
+            final ValueMap values = new ValueMap().withString(":expectedHash", expectedHash);
+            String condition = "#stateHash = :expectedHash";
+            if(stateHash != null && !stateHash.equals(expectedHash))
+            {
+                condition += " OR #stateHash = :stateHash";
+                values.withString(":stateHash", stateHash);
+            }
+
+            putItemSpec.withConditionExpression(condition)
+                    .withNameMap(Collections.singletonMap("#stateHash", DynamoDBS3Utils.FIELD_NAME_STATE_HASH))
+                    .withValueMap(values);
+        }
+
+        return dynamoDB.getTable(tableName).putItem(putItemSpec).getItem();
+    }
+}
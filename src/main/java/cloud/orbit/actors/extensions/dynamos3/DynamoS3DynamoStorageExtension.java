@@ -31,6 +31,7 @@ package cloud.orbit.actors.extensions.dynamos3;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import cloud.orbit.actors.extensions.dynamodb.DynamoDBConfiguration;
 import cloud.orbit.actors.extensions.dynamodb.DynamoDBStorageExtension;
@@ -39,17 +40,87 @@ import cloud.orbit.actors.runtime.RemoteReference;
 import cloud.orbit.exception.UncheckedException;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 public class DynamoS3DynamoStorageExtension extends DynamoDBStorageExtension
 {
+    private StateSerializers stateSerializers;
+
+    private final DynamoDBConfiguration dynamoDBConfiguration;
+    private String defaultTableName;
+
     public DynamoS3DynamoStorageExtension()
     {
         super();
+        this.dynamoDBConfiguration = new DynamoDBConfiguration();
     }
 
     public DynamoS3DynamoStorageExtension(final DynamoDBConfiguration dynamoDBConfiguration)
     {
         super(dynamoDBConfiguration);
+        this.dynamoDBConfiguration = dynamoDBConfiguration;
+    }
+
+    /**
+     * The configuration this extension connects with, so {@link DynamoS3StorageExtension} can reach the same
+     * tables with the same credentials.
+     */
+    public DynamoDBConfiguration getDynamoDBConfiguration()
+    {
+        return dynamoDBConfiguration;
+    }
+
+    /**
+     * The table set with {@link #setDefaultTableName}, {@code null} if none was.
+     */
+    public String getDefaultTableName()
+    {
+        return defaultTableName;
+    }
+
+    @Override
+    public void setDefaultTableName(final String defaultTableName)
+    {
+        super.setDefaultTableName(defaultTableName);
+        this.defaultTableName = defaultTableName;
+    }
+
+    public StateSerializers getStateSerializers()
+    {
+        return stateSerializers;
+    }
+
+    /**
+     * Sets the readers states are read with, shared with {@link DynamoS3StorageExtension}. Without them states
+     * are read with the mapper of the DynamoDB extension.
+     */
+    public void setStateSerializers(final StateSerializers stateSerializers)
+    {
+        this.stateSerializers = stateSerializers;
+    }
+
+    /**
+     * Builds the item {@link #writeState} would put for a wrapped state, so it can be written in a batch.
+     */
+    public Item buildPutItem(
+            final RemoteReference<?> reference,
+            final DynamoS3StorageExtension.StateWrapper wrapper,
+            final Class<?> stateClass,
+            final ObjectMapper mapper)
+    {
+        return generatePutItem(reference, wrapper, stateClass, DynamoDBS3Utils.generateItemId(reference, stateClass), mapper);
+    }
+
+    /**
+     * Reads an item fetched outside of {@link #readState} into a wrapped state, e.g. from a batch.
+     */
+    public void readItem(
+            final DynamoS3StorageExtension.StateWrapper wrapper,
+            final Class<?> stateClass,
+            final Item item,
+            final ObjectMapper mapper)
+    {
+        readStateInternal(wrapper, stateClass, item, mapper);
     }
 
     @Override
@@ -66,7 +137,9 @@ public class DynamoS3DynamoStorageExtension extends DynamoDBStorageExtension
             {
                 DynamoS3StorageExtension.StateWrapper wrapper = (DynamoS3StorageExtension.StateWrapper) state;
 
-                final Item item = super.generatePutItem(reference, wrapper.state, stateClass, itemId, mapper);
+                // State serialized up front by DynamoS3StorageExtension is reused rather than encoded again
+                final Object itemState = wrapper.serializedState == null && wrapper.binaryState == null ? wrapper.state : null;
+                final Item item = super.generatePutItem(reference, itemState, stateClass, itemId, mapper);
 
                 if (wrapper.s3Location != null)
                 {
@@ -74,6 +147,33 @@ public class DynamoS3DynamoStorageExtension extends DynamoDBStorageExtension
                     item.withJSON(DynamoDBS3Utils.FIELD_NAME_S3_LOCATION, serializedS3Location);
                     item.removeAttribute(DynamoDBUtils.FIELD_NAME_DATA);
                 }
+                else if (wrapper.chunkManifest != null)
+                {
+                    final String serializedManifest = mapper.writeValueAsString(wrapper.chunkManifest);
+                    item.withJSON(DynamoDBS3Utils.FIELD_NAME_CHUNK_MANIFEST, serializedManifest);
+                    item.removeAttribute(DynamoDBUtils.FIELD_NAME_DATA);
+                }
+                else if (wrapper.binaryState != null)
+                {
+                    item.withBinary(DynamoDBS3Utils.FIELD_NAME_BINARY_DATA, wrapper.binaryState);
+                    item.withString(DynamoDBS3Utils.FIELD_NAME_CODEC, wrapper.codec.name());
+                    item.removeAttribute(DynamoDBUtils.FIELD_NAME_DATA);
+                }
+                else if (wrapper.serializedState != null)
+                {
+                    item.withJSON(DynamoDBUtils.FIELD_NAME_DATA, wrapper.serializedState);
+                }
+
+                if (wrapper.stateHash != null)
+                {
+                    item.withString(DynamoDBS3Utils.FIELD_NAME_STATE_HASH, wrapper.stateHash);
+                }
+
+                // JSON is left untagged, as it was before formats were recorded
+                if (wrapper.format != null && wrapper.format != StateFormat.JSON)
+                {
+                    item.withString(DynamoDBS3Utils.FIELD_NAME_FORMAT, wrapper.format.name());
+                }
 
                 return item;
             }
@@ -100,17 +200,58 @@ public class DynamoS3DynamoStorageExtension extends DynamoDBStorageExtension
             try
             {
                 final DynamoS3StorageExtension.StateWrapper stateWrapper = (DynamoS3StorageExtension.StateWrapper) state;
-                final String s3Overload = item.getJSON(DynamoDBS3Utils.FIELD_NAME_S3_LOCATION);
-                if (s3Overload != null)
-                {
-                    S3Location s3Location = new S3Location();
-                    mapper.readerForUpdating(s3Location).readValue(s3Overload);
-                    stateWrapper.s3Location = s3Location;
-                }
-                else
+                stateWrapper.s3Location = DynamoDBS3Utils.readS3Location(item, mapper);
+                stateWrapper.chunkManifest = DynamoDBS3Utils.readChunkManifest(item, mapper);
+                stateWrapper.stateHash = item.getString(DynamoDBS3Utils.FIELD_NAME_STATE_HASH);
+                final String format = item.getString(DynamoDBS3Utils.FIELD_NAME_FORMAT);
+                stateWrapper.format = format != null ? StateFormat.valueOf(format) : StateFormat.JSON;
+                // Chunked state is fetched by DynamoS3StorageExtension
+                if (stateWrapper.s3Location == null && stateWrapper.chunkManifest == null)
                 {
-                    stateWrapper.s3Location = null;
-                    super.readStateInternal(stateWrapper.state, stateClass, item, mapper);
+                    final String codec = item.getString(DynamoDBS3Utils.FIELD_NAME_CODEC);
+                    if (codec != null)
+                    {
+                        final byte[] serializedState = CompressionCodec.valueOf(codec)
+                                .decompress(item.getBinary(DynamoDBS3Utils.FIELD_NAME_BINARY_DATA));
+                        if (stateWrapper.format.isBinary())
+                        {
+                            // Only DynamoS3StorageExtension can parse binary formats
+                            stateWrapper.binaryState = serializedState;
+                        }
+                        else if (stateWrapper.state != null)
+                        {
+                            readerForUpdating(stateWrapper.state, mapper).readValue(serializedState);
+                        }
+                        if (stateWrapper.capturePayload)
+                        {
+                            stateWrapper.payload = serializedState;
+                        }
+                    }
+                    else if (stateWrapper.capturePayload)
+                    {
+                        final String serializedState = item.getJSON(DynamoDBUtils.FIELD_NAME_DATA);
+                        if (serializedState != null)
+                        {
+                            if (stateWrapper.state != null)
+                            {
+                                readerForUpdating(stateWrapper.state, mapper).readValue(serializedState);
+                            }
+                            stateWrapper.payload = serializedState.getBytes(StandardCharsets.UTF_8);
+                        }
+                    }
+                    else if (stateSerializers != null)
+                    {
+                        // Populates the caller's state object directly, no intermediate copy is needed
+                        final String serializedState = item.getJSON(DynamoDBUtils.FIELD_NAME_DATA);
+                        if (serializedState != null && stateWrapper.state != null)
+                        {
+                            readerForUpdating(stateWrapper.state, mapper).readValue(serializedState);
+                        }
+                    }
+                    else
+                    {
+                        super.readStateInternal(stateWrapper.state, stateClass, item, mapper);
+                    }
                 }
             }
             catch (IOException e)
@@ -123,4 +264,11 @@ public class DynamoS3DynamoStorageExtension extends DynamoDBStorageExtension
             super.readStateInternal(state, stateClass, item, mapper);
         }
     }
+
+    private ObjectReader readerForUpdating(final Object state, final ObjectMapper mapper)
+    {
+        return stateSerializers != null
+                ? stateSerializers.readerForUpdating(StateFormat.JSON, state)
+                : mapper.readerForUpdating(state);
+    }
 }
@@ -0,0 +1,316 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The executors, concurrency limits, retries, hedging, batching and caches of a started
+ * {@link DynamoS3StorageExtension}, built from its settings. Pools only some features need are created when
+ * those are turned on, or when first used.
+ */
+class DynamoS3Services
+{
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workerExecutor;
+    private final ConcurrencyLimiter dynamoLimiter;
+    private final ConcurrencyLimiter s3Limiter;
+    private final AdaptiveRetry dynamoRetry;
+    private final AdaptiveRetry s3Retry;
+    private final RequestHedger s3Hedger;
+    private final ExecutorService batchExecutor;
+    private final ExecutorService batchReadExecutor;
+    private final DynamoBatchWriter batchWriter;
+    private final DynamoBatchReader batchReader;
+    private final StateTierHistory tierHistory;
+    private final NearCache nearCache;
+    private final S3PayloadCache s3PayloadCache;
+
+    private final int s3TransferThreads;
+    private final int preloadParallelism;
+    private ExecutorService s3TransferExecutor;
+    private ThreadPoolExecutor preloadExecutor;
+    private boolean shutdown;
+
+    /**
+     * @param batching whether DynamoDB items can be batched, which takes a {@link DynamoS3DynamoStorageExtension}
+     */
+    DynamoS3Services(final DynamoS3StorageExtension settings, final DynamoDB dynamoDB, final boolean batching)
+    {
+        s3TransferThreads = settings.getS3TransferThreads();
+        preloadParallelism = settings.getPreloadParallelism();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon("orbit-dynamo-s3-scheduler"));
+        // Runs callers that were queued for a permit or delayed by a throttle or retry. Only callers holding a
+        // permit run here, so the pool is bounded by the limits
+        workerExecutor = Executors.newCachedThreadPool(daemon("orbit-dynamo-s3-worker"));
+
+        dynamoLimiter = new ConcurrencyLimiter(
+                "DynamoDB", settings.getDynamoMaxConcurrency(), settings.getMaxQueueLength(), settings.getConcurrencyPolicy(), workerExecutor);
+        s3Limiter = new ConcurrencyLimiter(
+                "S3", settings.getS3MaxConcurrency(), settings.getMaxQueueLength(), settings.getConcurrencyPolicy(), workerExecutor);
+        dynamoRetry = new AdaptiveRetry(
+                new AdaptiveThrottle(settings.getDynamoMaximumRate(), scheduler, workerExecutor),
+                scheduler,
+                workerExecutor,
+                settings.getRetryMaximumAttempts(),
+                settings.getRetryBaseDelayMillis(),
+                settings.getRetryMaximumDelayMillis());
+        s3Retry = new AdaptiveRetry(
+                new AdaptiveThrottle(settings.getS3MaximumRate(), scheduler, workerExecutor),
+                scheduler,
+                workerExecutor,
+                settings.getRetryMaximumAttempts(),
+                settings.getRetryBaseDelayMillis(),
+                settings.getRetryMaximumDelayMillis());
+        s3Hedger = settings.isS3HedgedReads()
+                ? new RequestHedger(
+                        settings.getS3HedgePercentile(),
+                        settings.getS3HedgeBudget(),
+                        settings.getS3HedgeInitialDelayMillis(),
+                        s3Limiter,
+                        scheduler)
+                : null;
+
+        final boolean batchWrites = batching && settings.getBatchWriteWindowMillis() > 0;
+        final boolean batchReads = batching && settings.getBatchReadWindowMillis() > 0;
+        // Sends batches, each holding a DynamoDB permit, so the pool is bounded by the limit
+        batchExecutor = batchWrites || batchReads ? Executors.newCachedThreadPool(daemon("orbit-dynamo-s3-batch")) : null;
+        batchWriter = batchWrites
+                ? new DynamoBatchWriter(
+                        dynamoDB,
+                        dynamoLimiter,
+                        dynamoRetry.getThrottle(),
+                        scheduler,
+                        batchExecutor,
+                        settings.getBatchWriteWindowMillis())
+                : null;
+        // Reads complete on their own pool, so S3 follow-ups neither run one by one nor starve transfers
+        batchReadExecutor = batchReads
+                ? Executors.newFixedThreadPool(settings.getBatchReadParallelism(), daemon("orbit-dynamo-s3-read"))
+                : null;
+        batchReader = batchReads
+                ? new DynamoBatchReader(
+                        dynamoDB,
+                        dynamoLimiter,
+                        dynamoRetry.getThrottle(),
+                        scheduler,
+                        batchExecutor,
+                        batchReadExecutor,
+                        settings.getBatchReadWindowMillis())
+                : null;
+
+        tierHistory = new StateTierHistory(settings.getTierHistoryMaximumSize(), settings.getTierHysteresis());
+        nearCache = new NearCache(settings.getNearCacheMaximumBytes(), settings.getNearCacheExpireAfterWriteMillis());
+        s3PayloadCache = new S3PayloadCache(
+                settings.getS3CacheMaximumBytes(),
+                settings.getS3CacheDirectory() != null ? Paths.get(settings.getS3CacheDirectory()) : null,
+                settings.getS3CacheDiskMaximumBytes());
+    }
+
+    /**
+     * Calls DynamoDB within the concurrency limit, retrying transient failures. Each attempt takes its own permit,
+     * so no permit is held while backing off.
+     */
+    <T> CompletableFuture<T> callDynamo(final Supplier<? extends CompletableFuture<T>> call)
+    {
+        return dynamoRetry.execute(() -> dynamoLimiter.submit(call));
+    }
+
+    /**
+     * Calls S3 within the concurrency limit, retrying transient failures. Each attempt takes its own permit,
+     * so no permit is held while backing off.
+     */
+    <T> CompletableFuture<T> callS3(final Supplier<? extends CompletableFuture<T>> call)
+    {
+        return s3Retry.execute(() -> s3Limiter.submit(call));
+    }
+
+    ScheduledExecutorService getScheduler()
+    {
+        return scheduler;
+    }
+
+    ExecutorService getWorkerExecutor()
+    {
+        return workerExecutor;
+    }
+
+    /**
+     * Runs multipart uploads and ranged downloads. Only objects larger than a part need it, so its pool is
+     * created on the first of them.
+     */
+    Executor getS3TransferExecutor()
+    {
+        return command -> startS3TransferExecutor().execute(command);
+    }
+
+    /**
+     * Runs preloads, which wait on blocking reads, so they get threads of their own rather than starve
+     * transfers. Created on the first preload, and idle outside of preloading.
+     */
+    synchronized Executor getPreloadExecutor()
+    {
+        checkRunning();
+        if(preloadExecutor == null)
+        {
+            preloadExecutor = new ThreadPoolExecutor(
+                    preloadParallelism, preloadParallelism, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    daemon("orbit-dynamo-s3-preload"));
+            preloadExecutor.allowCoreThreadTimeOut(true);
+        }
+        return preloadExecutor;
+    }
+
+    ConcurrencyLimiter getDynamoLimiter()
+    {
+        return dynamoLimiter;
+    }
+
+    ConcurrencyLimiter getS3Limiter()
+    {
+        return s3Limiter;
+    }
+
+    AdaptiveRetry getDynamoRetry()
+    {
+        return dynamoRetry;
+    }
+
+    AdaptiveRetry getS3Retry()
+    {
+        return s3Retry;
+    }
+
+    /**
+     * {@code null} unless S3 reads are hedged.
+     */
+    RequestHedger getS3Hedger()
+    {
+        return s3Hedger;
+    }
+
+    /**
+     * {@code null} unless writes are batched.
+     */
+    DynamoBatchWriter getBatchWriter()
+    {
+        return batchWriter;
+    }
+
+    /**
+     * {@code null} unless reads are batched.
+     */
+    DynamoBatchReader getBatchReader()
+    {
+        return batchReader;
+    }
+
+    StateTierHistory getTierHistory()
+    {
+        return tierHistory;
+    }
+
+    NearCache getNearCache()
+    {
+        return nearCache;
+    }
+
+    S3PayloadCache getS3PayloadCache()
+    {
+        return s3PayloadCache;
+    }
+
+    /**
+     * Shuts down every pool created, letting what was submitted already run.
+     */
+    synchronized void shutdown()
+    {
+        shutdown = true;
+        scheduler.shutdown();
+        workerExecutor.shutdown();
+        if(s3TransferExecutor != null)
+        {
+            s3TransferExecutor.shutdown();
+        }
+        if(preloadExecutor != null)
+        {
+            preloadExecutor.shutdown();
+        }
+        if(batchExecutor != null)
+        {
+            batchExecutor.shutdown();
+        }
+        if(batchReadExecutor != null)
+        {
+            batchReadExecutor.shutdown();
+        }
+    }
+
+    private synchronized ExecutorService startS3TransferExecutor()
+    {
+        checkRunning();
+        if(s3TransferExecutor == null)
+        {
+            s3TransferExecutor = Executors.newFixedThreadPool(s3TransferThreads, daemon("orbit-dynamo-s3-transfer"));
+        }
+        return s3TransferExecutor;
+    }
+
+    private void checkRunning()
+    {
+        if(shutdown)
+        {
+            throw new RejectedExecutionException("The extension has been stopped");
+        }
+    }
+
+    private static ThreadFactory daemon(final String name)
+    {
+        return r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -31,29 +31,61 @@ package cloud.orbit.actors.extensions.dynamos3;
 import com.ea.async.Async;
 
 import com.amazonaws.AmazonServiceException;
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.amazonaws.services.dynamodbv2.document.DeleteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 
+import cloud.orbit.actors.extensions.LifetimeExtension;
 import cloud.orbit.actors.extensions.StorageExtension;
 import cloud.orbit.actors.extensions.dynamodb.DynamoDBConfiguration;
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBConnection;
 import cloud.orbit.actors.extensions.dynamodb.DynamoDBStorageExtension;
-import cloud.orbit.actors.extensions.json.ActorReferenceModule;
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
 import cloud.orbit.actors.extensions.s3.S3Configuration;
+import cloud.orbit.actors.extensions.s3.S3Connection;
 import cloud.orbit.actors.extensions.s3.S3StorageExtension;
-import cloud.orbit.actors.runtime.DefaultDescriptorFactory;
+import cloud.orbit.actors.runtime.AbstractActor;
 import cloud.orbit.actors.runtime.RemoteReference;
 import cloud.orbit.concurrent.Task;
 import cloud.orbit.exception.UncheckedException;
 
-import java.util.ArrayList;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 import static com.ea.async.Async.await;
 
-public class DynamoS3StorageExtension implements StorageExtension
+public class DynamoS3StorageExtension implements StorageExtension, LifetimeExtension
 {
     static
     {
@@ -74,6 +106,28 @@ public class DynamoS3StorageExtension implements StorageExtension
 
         public Object state;
         public S3Location s3Location;
+        public ChunkManifest chunkManifest;
+        public String serializedState;
+        public byte[] binaryState;
+        public CompressionCodec codec;
+
+        /**
+         * Format of the serialized state. States read in a binary format are left in {@link #binaryState} to be
+         * parsed by the caller.
+         */
+        public StateFormat format;
+
+        /**
+         * Hash of the state's serialized form, stored with the item so unchanged writes can be skipped.
+         */
+        public String stateHash;
+
+        /**
+         * When set on a read, the serialized state found inline is kept in {@link #payload}. Without a
+         * {@link #state} to read into, it is only kept.
+         */
+        public boolean capturePayload;
+        public byte[] payload;
     }
 
     private String name = "default";
@@ -82,18 +136,80 @@ public class DynamoS3StorageExtension implements StorageExtension
     private S3Configuration s3Configuration = new S3Configuration();
 
     private DynamoDBStorageExtension dynamoDBStorageExtension;
+    private DynamoDBConnection dynamoDBConnection;
     private S3StorageExtension s3StorageExtension;
+    private S3Connection s3Connection;
 
     private ObjectMapper mapper = new ObjectMapper();
+    private StateSerializers stateSerializers;
+    private StateFormat stateFormat = StateFormat.JSON;
 
     private String defaultDynamoTableName = "orbit";
+    private String dynamoTableName;
     private String s3BucketName = "orbit-bucket";
+    private List<String> s3BucketNames = Collections.emptyList();
+    private S3KeyLayout s3KeyLayout = S3KeyLayout.LEGACY;
+    private int inlineSizeThreshold = DynamoDBS3Utils.DEFAULT_INLINE_SIZE_THRESHOLD;
+    private CompressionCodec compressionCodec = CompressionCodec.NONE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private CompressionCodec s3CompressionCodec = CompressionCodec.NONE;
+    private int s3CompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int s3StreamingThreshold = 4 * 1024 * 1024;
+    private int s3PartSize = S3UploadOutputStream.MINIMUM_PART_SIZE;
+    private int s3TransferParallelism = 4;
+    private int s3TransferThreads = 16;
+    private long s3ParallelDownloadThreshold = 16 * 1024 * 1024;
+    private DynamoChunkStore chunkStore;
+    private DynamoItemSwitch itemSwitch;
+    private int chunkedMaximumSize = 0;
+    private int chunkSize = DynamoChunkStore.DEFAULT_CHUNK_SIZE;
+
+    private long nearCacheMaximumBytes = 64 * 1024 * 1024;
+    private long nearCacheExpireAfterWriteMillis = TimeUnit.MINUTES.toMillis(5);
+    private int preloadParallelism = 32;
+    private long s3CacheMaximumBytes = 0;
+    private int s3CacheMaximumEntryBytes = 16 * 1024 * 1024;
+    private String s3CacheDirectory;
+    private long s3CacheDiskMaximumBytes = 1024L * 1024 * 1024;
+    private int dynamoMaxConcurrency = 48;
+    private int s3MaxConcurrency = 12;
+    private int maxQueueLength = 10000;
+    private ConcurrencyLimiter.Policy concurrencyPolicy = ConcurrencyLimiter.Policy.WAIT;
+    private boolean s3HedgedReads = false;
+    private double s3HedgePercentile = 0.95;
+    private double s3HedgeBudget = 0.05;
+    private long s3HedgeInitialDelayMillis = 100;
+    private double dynamoMaximumRate = 10000;
+    private double s3MaximumRate = 3500;
+    private int retryMaximumAttempts = 5;
+    private long retryBaseDelayMillis = 25;
+    private long retryMaximumDelayMillis = 2000;
+    private DynamoS3Services services;
+    private S3OrphanSweeper s3Sweeper;
+    private long s3SweepIntervalMillis = 0;
+    private long s3SweepGracePeriodMillis = TimeUnit.HOURS.toMillis(1);
+    private int s3SweepParallelism = 8;
+    private int s3SweepPageSize = 1000;
+    private WriteBehindBuffer writeBehindBuffer;
+    private long batchWriteWindowMillis = 0;
+    private long batchReadWindowMillis = 0;
+    private int batchReadParallelism = 16;
+    private long writeBehindWindowMillis = 1000;
+    private int writeBehindMaximumDirty = 10000;
+    private int writeBehindMaximumAttempts = 10;
+    private long tierHistoryMaximumSize = 100000;
+    private double tierHysteresis = 0.1;
 
     public DynamoS3StorageExtension()
     {
 
     }
 
+    /**
+     * Stores states through the given extensions. Connection settings, table and bucket are then taken from
+     * them, provided they are a {@link DynamoS3DynamoStorageExtension} and a {@link DynamoS3S3StorageExtension};
+     * for other extensions they cannot be read back, and must be set on this extension to match.
+     */
     public DynamoS3StorageExtension(final DynamoDBStorageExtension dynamoDBStorageExtension, final S3StorageExtension s3StorageExtension)
     {
         this.dynamoDBStorageExtension = dynamoDBStorageExtension;
@@ -109,32 +225,58 @@ public class DynamoS3StorageExtension implements StorageExtension
     @Override
     public Task<Void> start()
     {
-        mapper = new ObjectMapper();
-
-        mapper.registerModule(new ActorReferenceModule(DefaultDescriptorFactory.get()));
-
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-
-        mapper.setVisibility(mapper.getSerializationConfig().getDefaultVisibilityChecker()
-                .withFieldVisibility(JsonAutoDetect.Visibility.ANY)
-                .withGetterVisibility(JsonAutoDetect.Visibility.NONE)
-                .withIsGetterVisibility(JsonAutoDetect.Visibility.NONE)
-                .withSetterVisibility(JsonAutoDetect.Visibility.NONE)
-                .withCreatorVisibility(JsonAutoDetect.Visibility.NONE));
-
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        stateSerializers = new StateSerializers();
+        mapper = stateSerializers.getMapper(StateFormat.JSON);
 
         if(dynamoDBStorageExtension == null)
         {
             dynamoDBStorageExtension = new DynamoS3DynamoStorageExtension(dynamoDBConfiguration);
             dynamoDBStorageExtension.setDefaultTableName(defaultDynamoTableName);
         }
+        // Items are read and written next to the extension, so both must reach the same table the same way
+        DynamoDBConfiguration connectedDynamoDBConfiguration = dynamoDBConfiguration;
+        dynamoTableName = defaultDynamoTableName;
+        if(dynamoDBStorageExtension instanceof DynamoS3DynamoStorageExtension)
+        {
+            final DynamoS3DynamoStorageExtension dynamoS3DynamoStorageExtension = (DynamoS3DynamoStorageExtension) dynamoDBStorageExtension;
+            dynamoS3DynamoStorageExtension.setStateSerializers(stateSerializers);
+            connectedDynamoDBConfiguration = dynamoS3DynamoStorageExtension.getDynamoDBConfiguration();
+            if(dynamoS3DynamoStorageExtension.getDefaultTableName() != null)
+            {
+                dynamoTableName = dynamoS3DynamoStorageExtension.getDefaultTableName();
+            }
+        }
 
         if(s3StorageExtension == null)
         {
-            s3StorageExtension = new S3StorageExtension(s3Configuration);
+            s3StorageExtension = new DynamoS3S3StorageExtension(s3Configuration);
             s3StorageExtension.setBucketName(s3BucketName);
         }
+        final S3Configuration connectedS3Configuration = s3StorageExtension instanceof DynamoS3S3StorageExtension
+                ? ((DynamoS3S3StorageExtension) s3StorageExtension).getS3Configuration()
+                : s3Configuration;
+
+        dynamoDBConnection = new DynamoDBConnection(connectedDynamoDBConfiguration);
+        s3Connection = new S3Connection(connectedS3Configuration);
+        services = new DynamoS3Services(
+                this, dynamoDBConnection.getDynamoDB(), dynamoDBStorageExtension instanceof DynamoS3DynamoStorageExtension);
+        itemSwitch = new DynamoItemSwitch(dynamoDBConnection.getDynamoDB());
+        // Always there to read chunked states, even with chunked writes turned off
+        chunkStore = new DynamoChunkStore(
+                dynamoDBConnection.getDynamoDB(), chunkSize, services.getScheduler(), services.getWorkerExecutor());
+        writeBehindBuffer = new WriteBehindBuffer(
+                (reference, snapshot, stateClass) -> writeStateNow(reference, snapshot, stateClass),
+                services.getScheduler(),
+                services.getWorkerExecutor(),
+                writeBehindWindowMillis,
+                writeBehindMaximumDirty,
+                writeBehindMaximumAttempts);
+        // Created on first use
+        s3Sweeper = null;
+        if(s3SweepIntervalMillis > 0)
+        {
+            services.getScheduler().schedule(this::scheduledSweep, s3SweepIntervalMillis, TimeUnit.MILLISECONDS);
+        }
 
         return Task.allOf(
                 dynamoDBStorageExtension.start(),
@@ -145,155 +287,2098 @@ public class DynamoS3StorageExtension implements StorageExtension
     @Override
     public Task<Void> stop()
     {
-        return Task.allOf(
+        // Nothing held back may be lost, so pending writes are persisted while the connections are still up,
+        // retrying failed ones until they run out of attempts. Writes that could not be are reported once
+        // everything is shut down regardless
+        CompletionException flushFailure = null;
+        try
+        {
+            await(writeBehindBuffer.drain());
+        }
+        catch(CompletionException e)
+        {
+            flushFailure = e;
+        }
+        services.shutdown();
+        dynamoDBConnection.getDynamoClient().shutdown();
+        s3Connection.getS3Client().shutdown();
+
+        final Task<Void> stopped = Task.allOf(
                 dynamoDBStorageExtension.stop(),
                 s3StorageExtension.stop()
         );
+        if(flushFailure == null)
+        {
+            return stopped;
+        }
+        final CompletionException failure = flushFailure;
+        return Task.from(stopped.thenRun(() -> {
+            throw failure;
+        }));
+    }
+
+
+    /**
+     * Deletes the objects in the buckets that no DynamoDB item points to any more, see {@link S3OrphanSweeper}.
+     *
+     * @return the number of objects deleted
+     */
+    public Task<Long> sweepOrphans()
+    {
+        return Task.supplyAsync(() -> {
+            long deleted = 0;
+            for(final String bucketName : getSweptBucketNames())
+            {
+                deleted += getS3Sweeper().sweep(bucketName, null);
+            }
+            return deleted;
+        }, services.getWorkerExecutor());
+    }
+
+    private Set<String> getSweptBucketNames()
+    {
+        final Set<String> bucketNames = new LinkedHashSet<>();
+        bucketNames.add(s3StorageExtension.getBucketName());
+        bucketNames.addAll(s3BucketNames);
+        return bucketNames;
+    }
+
+    private void scheduledSweep()
+    {
+        // The next sweep is only scheduled once this one is done, so they never overlap
+        sweepOrphans().whenComplete((deleted, e) -> {
+            if(!services.getScheduler().isShutdown())
+            {
+                services.getScheduler().schedule(this::scheduledSweep, s3SweepIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        });
     }
 
+    @Override
+    public Task<?> postDeactivation(final AbstractActor<?> actor)
+    {
+        final RemoteReference<?> reference = RemoteReference.from(actor);
+        if(writeBehindBuffer.isPending(reference))
+        {
+            return Task.from(writeBehindBuffer.flush(reference));
+        }
+        return Task.done();
+    }
 
     @Override
     public Task<Void> clearState(final RemoteReference<?> reference, final Object state)
     {
-        final StateWrapper wrapper = new StateWrapper(state);
+        // A pending write must neither outlive the clear nor land after it
+        await(writeBehindBuffer.discard(reference));
 
-        final Boolean readRecord = await(dynamoDBStorageExtension.readState(reference, wrapper, state.getClass()));
+        services.getTierHistory().forget(reference);
+        services.getNearCache().invalidate(reference);
 
-        if(readRecord)
+        // The delete hands back the old item, so finding out whether there is more to delete costs no extra read
+        final Item oldItem = await(callDynamo(() -> callNow(() -> deleteItem(reference, state.getClass()))));
+        if(oldItem == null)
         {
-            List<Task> tasks = new ArrayList<>();
+            return Task.done();
+        }
 
-            tasks.add(dynamoDBStorageExtension.clearState(reference, wrapper, state.getClass()));
+        final S3Location s3Location;
+        final ChunkManifest chunkManifest;
+        try
+        {
+            s3Location = DynamoDBS3Utils.readS3Location(oldItem, mapper);
+            chunkManifest = DynamoDBS3Utils.readChunkManifest(oldItem, mapper);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
 
-            if(wrapper.s3Location != null)
-            {
-                tasks.add(s3StorageExtension.clearState(reference, state));
-            }
+        if(chunkManifest != null)
+        {
+            await(deleteChunks(reference, state.getClass(), chunkManifest));
+        }
 
-            return Task.allOf(tasks);
+        if(s3Location != null)
+        {
+            return deleteS3Object(s3Location);
         }
 
         return Task.done();
     }
 
+    private Item deleteItem(final RemoteReference<?> reference, final Class<?> stateClass)
+    {
+        final Table table = dynamoDBConnection.getDynamoDB().getTable(getTableName(stateClass));
+
+        try
+        {
+            final DeleteItemOutcome outcome = table.deleteItem(new DeleteItemSpec()
+                    .withPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, DynamoDBS3Utils.generateItemId(reference, stateClass))
+                    .withReturnValues(ReturnValue.ALL_OLD));
+
+            return outcome.getItem();
+        }
+        catch(ResourceNotFoundException e)
+        {
+            // Nothing was ever written to this table
+            return null;
+        }
+    }
+
     @Override
     public Task<Boolean> readState(final RemoteReference<?> reference, final Object state)
     {
+        return readState(reference, state, true);
+    }
+
+    private Task<Boolean> readState(final RemoteReference<?> reference, final Object state, final boolean followReplaced)
+    {
+        if(writeBehindBuffer.isPending(reference))
+        {
+            // Reads must see writes still held back
+            await(writeBehindBuffer.flush(reference));
+        }
+
+        final boolean cached = isNearCached(state.getClass());
+        // The near cache only ever holds states in the format of their type
+        final StateFormat format = getStateFormat(state.getClass());
+        final byte[] serializedState = services.getNearCache().get(reference);
+        if(serializedState != null)
+        {
+            if(!cached)
+            {
+                // Preloaded, but writes of this type do not keep the cache current, so it is only good once
+                services.getNearCache().invalidate(reference);
+            }
+            deserializeState(serializedState, format, state);
+            return Task.fromValue(true);
+        }
+
         final StateWrapper wrapper = new StateWrapper(state);
+        wrapper.capturePayload = cached;
 
-        final Boolean readRecord = await(dynamoDBStorageExtension.readState(reference, wrapper, state.getClass()));
+        final Boolean readRecord = await(readItem(reference, wrapper, state.getClass()));
 
         if(readRecord)
         {
+            recordRead(reference, wrapper);
+
+            if(wrapper.payload != null && wrapper.format == format)
+            {
+                services.getNearCache().put(reference, wrapper.payload);
+            }
+
+            // Inline JSON state has already been read into the state object by DynamoS3DynamoStorageExtension
             if(wrapper.s3Location != null)
             {
-                return s3StorageExtension.readState(reference, state);
+                final Boolean found = await(callS3(() -> callNow(() -> readFromS3(wrapper.s3Location, wrapper.format, state))));
+                if(!found && followReplaced)
+                {
+                    // A write can replace the object between reading the pointer and the object, in which case
+                    // the item points to its successor by now
+                    return readState(reference, state, false);
+                }
+                return Task.fromValue(found);
             }
-            else
+            if(wrapper.chunkManifest != null)
             {
-                try
+                final byte[] chunkedState = await(readChunks(reference, state.getClass(), wrapper.chunkManifest));
+                if(chunkedState == null)
                 {
-                    mapper.readerForUpdating(state).readValue(mapper.writeValueAsString(wrapper.state));
+                    if(followReplaced)
+                    {
+                        // As with S3 objects, a write can replace the chunks between reading the manifest and them
+                        return readState(reference, state, false);
+                    }
+                    throw new IllegalStateException("Chunks of version " + wrapper.chunkManifest.getVersion() + " are missing");
                 }
-                catch(Exception e)
+                deserializeState(chunkedState, wrapper.format, state);
+                if(cached && wrapper.format == format)
                 {
-                    throw new UncheckedException(e);
+                    services.getNearCache().put(reference, chunkedState);
                 }
-
             }
-         }
+            else if(wrapper.binaryState != null)
+            {
+                deserializeState(wrapper.binaryState, wrapper.format, state);
+            }
+        }
+        else
+        {
+            // Nothing is stored outside a missing item, so the first write can be batched without returning it
+            services.getTierHistory().recordRead(reference, StorageTier.DYNAMODB);
+        }
 
         return Task.fromValue(readRecord);
     }
 
-    @Override
-    public Task<Void> writeState(final RemoteReference<?> reference, final Object state)
+    /**
+     * Fetches the states of the given actors into the near cache with bounded parallelism, so that actors
+     * activated shortly after read them from memory. Meant to run before the actors receive traffic. States of
+     * types that are not near cached are served from the cache once. States too large for the S3 payload cache
+     * are not preloaded.
+     *
+     * @return the number of states preloaded
+     */
+    public Task<Integer> preload(final Class<?> stateClass, final Stream<? extends RemoteReference<?>> references)
     {
-        final StateWrapper wrapper = new StateWrapper(state);
+        final Iterator<? extends RemoteReference<?>> iterator = references.iterator();
+        final AtomicInteger preloaded = new AtomicInteger();
+        final AtomicInteger workers = new AtomicInteger(preloadParallelism);
+        final Task<Integer> result = new Task<>();
+
+        for(int i = 0; i < preloadParallelism; i++)
+        {
+            services.getPreloadExecutor().execute(() -> preloadNext(stateClass, iterator, preloaded, workers, result));
+        }
+        return result;
+    }
+
+    public Task<Integer> preload(final Class<?> stateClass, final Collection<? extends RemoteReference<?>> references)
+    {
+        return preload(stateClass, references.stream());
+    }
+
+    private void preloadNext(
+            final Class<?> stateClass,
+            final Iterator<? extends RemoteReference<?>> iterator,
+            final AtomicInteger preloaded,
+            final AtomicInteger workers,
+            final Task<Integer> result)
+    {
+        final RemoteReference<?> reference;
+        synchronized (iterator)
+        {
+            reference = iterator.hasNext() ? iterator.next() : null;
+        }
+
+        if(reference == null)
+        {
+            if(workers.decrementAndGet() == 0)
+            {
+                result.complete(preloaded.get());
+            }
+            return;
+        }
 
+        // Each next preload is dispatched anew, so a long run of them never piles up on one stack
+        Task<Boolean> preload;
         try
         {
-            await(dynamoDBStorageExtension.writeState(reference, wrapper, state.getClass()));
+            preload = preloadState(reference, stateClass);
+        }
+        catch(RuntimeException e)
+        {
+            preload = Task.fromException(e);
+        }
+        preload.whenComplete((loaded, e) -> {
+            if(e == null && loaded)
+            {
+                preloaded.incrementAndGet();
+            }
+            services.getPreloadExecutor().execute(() -> preloadNext(stateClass, iterator, preloaded, workers, result));
+        });
+    }
 
-            // Record is fine, we're done
-            return Task.done();
+    private Task<Boolean> preloadState(final RemoteReference<?> reference, final Class<?> stateClass)
+    {
+        if(writeBehindBuffer.isPending(reference))
+        {
+            // Storage is behind, the actor's next read flushes first anyway
+            return Task.fromValue(false);
         }
-        catch(CompletionException e)
+
+        final StateWrapper wrapper = new StateWrapper();
+        wrapper.capturePayload = true;
+
+        final Boolean found = await(readItem(reference, wrapper, stateClass));
+        if(!found)
         {
-            // Was this because of the size of the record?
-            if(e.getCause() instanceof AmazonServiceException)
+            return Task.fromValue(false);
+        }
+
+        recordRead(reference, wrapper);
+
+        final byte[] serializedState;
+        if(wrapper.s3Location != null)
+        {
+            serializedState = await(callS3(() -> callNow(() -> readS3State(wrapper.s3Location))));
+        }
+        else if(wrapper.chunkManifest != null)
+        {
+            serializedState = await(readChunks(reference, stateClass, wrapper.chunkManifest));
+        }
+        else
+        {
+            serializedState = wrapper.payload;
+        }
+        if(serializedState == null || wrapper.format != getStateFormat(stateClass))
+        {
+            return Task.fromValue(false);
+        }
+
+        services.getNearCache().put(reference, serializedState);
+        return Task.fromValue(true);
+    }
+
+    private void recordRead(final RemoteReference<?> reference, final StateWrapper wrapper)
+    {
+        final StorageTier tier;
+        if(wrapper.s3Location != null)
+        {
+            tier = StorageTier.S3;
+        }
+        else if(wrapper.chunkManifest != null)
+        {
+            tier = StorageTier.DYNAMODB_CHUNKED;
+        }
+        else
+        {
+            tier = StorageTier.DYNAMODB;
+        }
+        services.getTierHistory().recordRead(reference, tier, wrapper.stateHash, wrapper.s3Location, wrapper.chunkManifest);
+    }
+
+    /**
+     * Reads the serialized state in an S3 object, or returns {@code null} if it is missing or too large to be
+     * held in memory.
+     */
+    private byte[] readS3State(final S3Location s3Location)
+    {
+        final Long contentLength = s3Location.getContentLength();
+        if(contentLength == null || contentLength > s3CacheMaximumEntryBytes)
+        {
+            return null;
+        }
+
+        final CompressionCodec codec = s3Location.getCodec() != null ? s3Location.getCodec() : CompressionCodec.NONE;
+        try(InputStream in = codec.decompress(openS3Payload(s3Location)))
+        {
+            return IOUtils.toByteArray(in);
+        }
+        catch(AmazonS3Exception e)
+        {
+            if(e.getStatusCode() == 404)
             {
-                AmazonServiceException ase = (AmazonServiceException) e.getCause();
-                final String errorCode = ase.getErrorCode();
-                if(!errorCode.equals("ValidationException"))
-                {
-                    throw e;
-                }
+                return null;
             }
+            throw e;
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
+    }
 
+    /**
+     * Reads the item of a wrapped state, batched with reads of other actors when batching is enabled.
+     */
+    private Task<Boolean> readItem(final RemoteReference<?> reference, final StateWrapper wrapper, final Class<?> stateClass)
+    {
+        if(services.getBatchReader() == null)
+        {
+            return readItemAlone(reference, wrapper, stateClass);
         }
 
-        // If we got here, we must be too big
-        wrapper.s3Location = new S3Location()
-                .withBucketName(s3StorageExtension.getBucketName())
-                .withS3ItemName(s3StorageExtension.generateDocumentId(reference));
-        wrapper.state = null;
+        final Item item;
+        try
+        {
+            item = await(services.getBatchReader().get(
+                    getTableName(stateClass),
+                    DynamoDBS3Utils.generateItemId(reference, stateClass)));
+        }
+        catch(CompletionException e)
+        {
+            // The single read also deals with tables that do not exist yet
+            return readItemAlone(reference, wrapper, stateClass);
+        }
 
-        // Write out record to S3 and pointer to Dynamo
-        Task s3Write = s3StorageExtension.writeState(reference, state);
-        Task dynamoWrite = dynamoDBStorageExtension.writeState(reference, wrapper, state.getClass());
+        if(item == null)
+        {
+            return Task.fromValue(false);
+        }
 
-        return Task.allOf(s3Write, dynamoWrite);
+        ((DynamoS3DynamoStorageExtension) dynamoDBStorageExtension).readItem(wrapper, stateClass, item, mapper);
+        return Task.fromValue(true);
     }
 
-    public void setName(final String name)
+    private Task<Boolean> readItemAlone(final RemoteReference<?> reference, final StateWrapper wrapper, final Class<?> stateClass)
     {
-        this.name = name;
+        return callDynamo(() -> dynamoDBStorageExtension.readState(reference, wrapper, stateClass));
     }
 
-    @Override
-    public String getName()
+    private void deserializeState(final byte[] serializedState, final StateFormat format, final Object state)
     {
-        return name;
+        try
+        {
+            stateSerializers.readerForUpdating(format, state).readValue(serializedState);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
     }
 
-    public DynamoDBConfiguration getDynamoDBConfiguration()
+    private boolean isNearCached(final Class<?> stateClass)
     {
-        return dynamoDBConfiguration;
+        final DynamoS3StateConfiguration configuration = stateClass.getAnnotation(DynamoS3StateConfiguration.class);
+        return configuration != null && configuration.nearCache();
     }
 
-    public void setDynamoDBConfiguration(final DynamoDBConfiguration dynamoDBConfiguration)
+    private StateFormat getStateFormat(final Class<?> stateClass)
     {
-        this.dynamoDBConfiguration = dynamoDBConfiguration;
+        final DynamoS3StateConfiguration configuration = stateClass.getAnnotation(DynamoS3StateConfiguration.class);
+        return configuration != null && configuration.format().length > 0 ? configuration.format()[0] : stateFormat;
     }
 
-    public S3Configuration getS3Configuration()
+    private boolean isWrittenBehind(final Class<?> stateClass)
     {
-        return s3Configuration;
+        final DynamoS3StateConfiguration configuration = stateClass.getAnnotation(DynamoS3StateConfiguration.class);
+        return configuration != null && configuration.writeBehind();
     }
 
-    public void setS3Configuration(final S3Configuration s3Configuration)
+    private boolean readFromS3(final S3Location s3Location, final StateFormat format, final Object state)
     {
-        this.s3Configuration = s3Configuration;
+        final CompressionCodec codec = s3Location.getCodec() != null ? s3Location.getCodec() : CompressionCodec.NONE;
+
+        try(InputStream in = codec.decompress(openS3Payload(s3Location)))
+        {
+            // Parse straight from the (decompressing) stream rather than buffering the payload first
+            stateSerializers.readerForUpdating(format, state).readValue(in);
+            DynamoDBS3Utils.drain(in);
+            return true;
+        }
+        catch(AmazonS3Exception e)
+        {
+            if(e.getStatusCode() == 404)
+            {
+                return false;
+            }
+            throw e;
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
     }
 
-    public String getDefaultDynamoTableName()
+    /**
+     * Opens the stored bytes of an S3 object, from the local payload cache if possible.
+     */
+    private InputStream openS3Payload(final S3Location s3Location) throws IOException
     {
-        return defaultDynamoTableName;
+        final String contentHash = s3Location.getContentHash();
+        if(contentHash != null)
+        {
+            final InputStream cached = services.getS3PayloadCache().get(contentHash);
+            if(cached != null)
+            {
+                return cached;
+            }
+        }
+
+        final Long contentLength = s3Location.getContentLength();
+        if(contentLength == null || contentLength > s3CacheMaximumEntryBytes)
+        {
+            return openS3Object(s3Location);
+        }
+
+        // Small enough to be held in memory, which lets the download be hedged and cached
+        final byte[] payload = downloadS3Object(s3Location);
+
+        // Only cache what really hashes to the key, so nothing can poison the cache for other readers
+        if(contentHash != null && contentHash.equals(DynamoDBS3Utils.contentHash(payload)))
+        {
+            services.getS3PayloadCache().put(contentHash, payload);
+        }
+        return new ByteArrayInputStream(payload);
     }
 
-    public void setDefaultDynamoTableName(final String defaultDynamoTableName)
+    private byte[] downloadS3Object(final S3Location s3Location) throws IOException
     {
-        this.defaultDynamoTableName = defaultDynamoTableName;
+        if(services.getS3Hedger() == null)
+        {
+            return fetchS3Object(s3Location);
+        }
+
+        try
+        {
+            return services.getS3Hedger().execute(() -> fetchS3ObjectAsync(s3Location)).join();
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
     }
 
-    public String getS3BucketName()
+    private byte[] fetchS3Object(final S3Location s3Location) throws IOException
     {
-        return s3BucketName;
+        try(S3Object s3Object = s3Connection.getS3Client().getObject(s3Location.getBucketName(), s3Location.getItemName()))
+        {
+            return IOUtils.toByteArray(s3Object.getObjectContent());
+        }
     }
 
-    public void setS3BucketName(final String s3BucketName)
+    /**
+     * Downloads an object on the worker executor, aborting the download if the returned future is cancelled.
+     */
+    private CompletableFuture<byte[]> fetchS3ObjectAsync(final S3Location s3Location)
     {
-        this.s3BucketName = s3BucketName;
+        final CompletableFuture<byte[]> download = new CompletableFuture<>();
+        services.getWorkerExecutor().execute(() -> {
+            if(download.isDone())
+            {
+                // Cancelled before it started
+                return;
+            }
+            try(S3Object s3Object = s3Connection.getS3Client().getObject(s3Location.getBucketName(), s3Location.getItemName()))
+            {
+                // Drops the connection rather than reading the rest of an object nobody waits for
+                download.whenComplete((payload, e) -> {
+                    if(download.isCancelled())
+                    {
+                        s3Object.getObjectContent().abort();
+                    }
+                });
+                download.complete(IOUtils.toByteArray(s3Object.getObjectContent()));
+            }
+            catch(IOException e)
+            {
+                download.completeExceptionally(new UncheckedException(e));
+            }
+            catch(RuntimeException e)
+            {
+                download.completeExceptionally(e);
+            }
+        });
+        return download;
+    }
+
+    private InputStream openS3Object(final S3Location s3Location)
+    {
+        final Long contentLength = s3Location.getContentLength();
+        if(contentLength != null && contentLength > s3ParallelDownloadThreshold)
+        {
+            // Large objects are fetched as ranges over several connections and reassembled in order
+            return new ParallelRangeInputStream(
+                    (start, end) -> fetchS3Range(s3Location, start, end),
+                    services.getS3TransferExecutor(),
+                    contentLength,
+                    s3PartSize,
+                    s3TransferParallelism);
+        }
+
+        final S3Object s3Object = s3Connection.getS3Client().getObject(s3Location.getBucketName(), s3Location.getItemName());
+        return s3Object.getObjectContent();
+    }
+
+    private byte[] fetchS3Range(final S3Location s3Location, final long start, final long end) throws IOException
+    {
+        final GetObjectRequest request = new GetObjectRequest(s3Location.getBucketName(), s3Location.getItemName())
+                .withRange(start, end);
+
+        try(S3Object s3Object = s3Connection.getS3Client().getObject(request))
+        {
+            return IOUtils.toByteArray(s3Object.getObjectContent());
+        }
+    }
+
+    @Override
+    public Task<Void> writeState(final RemoteReference<?> reference, final Object state)
+    {
+        final Class<?> stateClass = state.getClass();
+
+        if(isWrittenBehind(stateClass))
+        {
+            return Task.from(writeBehindBuffer.write(reference, snapshotState(state), stateClass));
+        }
+
+        return writeStateNow(reference, state, stateClass);
+    }
+
+    /**
+     * Captures the serialized form of a state, which the actor can no longer change, without encoding it.
+     */
+    private TokenBuffer snapshotState(final Object state)
+    {
+        final TokenBuffer snapshot = new TokenBuffer(mapper, false);
+        try
+        {
+            stateSerializers.writerFor(StateFormat.JSON, state.getClass()).writeValue(snapshot, state);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Persists a state, or a {@link TokenBuffer} snapshot of one, of the given class.
+     */
+    private Task<Void> writeStateNow(final RemoteReference<?> reference, final Object state, final Class<?> stateClass)
+    {
+        final String itemId = DynamoDBS3Utils.generateItemId(reference, stateClass);
+        final Class<?> owningType = RemoteReference.getInterfaceClass(reference);
+
+        final S3Location s3Location = newS3Location(reference);
+        final StateFormat format = getStateFormat(stateClass);
+
+        final StateTierHistory.Placement previous = services.getTierHistory().getPlacement(reference);
+        final String previousHash = previous != null ? previous.getStateHash() : null;
+
+        SpillingOutputStream serializedState = previous != null && isLarge(previous)
+                ? null
+                : serializeState(reference, stateClass, state, s3Location, null, false);
+        if(serializedState == null)
+        {
+            // Streaming into S3 takes an upload permit, which is waited for without holding up the thread
+            await(services.getS3Limiter().acquire());
+            try
+            {
+                await(services.getS3Retry().getThrottle().acquire());
+                serializedState = serializeState(reference, stateClass, state, s3Location, previousHash, true);
+            }
+            finally
+            {
+                services.getS3Limiter().release();
+            }
+        }
+        final String stateHash = DynamoDBS3Utils.toHex(serializedState.digest());
+
+        if(stateHash.equals(previousHash))
+        {
+            // The last persisted state serialized to the same bytes, a copy streamed into S3 was abandoned
+            return Task.done();
+        }
+
+        // Drop any cached or preloaded copy before writing, so a failed write cannot leave a stale one behind
+        final boolean cached = isNearCached(stateClass);
+        services.getNearCache().invalidate(reference);
+
+        if(serializedState.isSpilled())
+        {
+            // Too large for any DynamoDB tier, the state was streamed straight into S3 while serializing
+            await(writeS3Pointer(reference, stateClass, s3Location, format, stateHash, previousHash));
+            services.getTierHistory().recordWrite(
+                    reference, StorageTier.S3, (int) Math.min(serializedState.size(), Integer.MAX_VALUE), stateHash, s3Location, null);
+            return Task.done();
+        }
+
+        final byte[] payload = serializedState.toByteArray();
+        final int codecSize = DynamoDBS3Utils.utf8Length(DynamoDBS3Utils.FIELD_NAME_CODEC) + DynamoDBS3Utils.utf8Length(compressionCodec.name());
+        // Attributes written next to the payload
+        final int overheadSize = DynamoDBS3Utils.utf8Length(DynamoDBS3Utils.FIELD_NAME_STATE_HASH) + stateHash.length()
+                + (format.isBinary() ? DynamoDBS3Utils.utf8Length(DynamoDBS3Utils.FIELD_NAME_FORMAT) + DynamoDBS3Utils.utf8Length(format.name()) : 0);
+        final int estimatedItemSize = format.isBinary()
+                ? DynamoDBS3Utils.estimateItemSize(itemId, owningType, DynamoDBS3Utils.FIELD_NAME_BINARY_DATA, payload.length)
+                        + DynamoDBS3Utils.utf8Length(DynamoDBS3Utils.FIELD_NAME_CODEC) + DynamoDBS3Utils.utf8Length(CompressionCodec.NONE.name())
+                        + overheadSize
+                : DynamoDBS3Utils.estimateItemSize(itemId, owningType, DynamoDBUtils.FIELD_NAME_DATA, payload.length) + overheadSize;
+
+        if(services.getTierHistory().chooseTier(reference, estimatedItemSize, inlineSizeThreshold) == StorageTier.DYNAMODB)
+        {
+            final StateWrapper wrapper = new StateWrapper(state);
+            if(format.isBinary())
+            {
+                // Binary states are stored as they are, under the codec that leaves them be
+                wrapper.binaryState = payload;
+                wrapper.codec = CompressionCodec.NONE;
+            }
+            else
+            {
+                wrapper.serializedState = new String(payload, StandardCharsets.UTF_8);
+            }
+            wrapper.format = format;
+            wrapper.stateHash = stateHash;
+
+            final Boolean written = await(writeInline(reference, stateClass, wrapper, estimatedItemSize, previous));
+            if(written)
+            {
+                // Record is fine, we're done
+                if(cached)
+                {
+                    services.getNearCache().put(reference, payload);
+                }
+                return Task.done();
+            }
+
+            // The estimate is not exact, so DynamoDB can still reject the item for its size
+            services.getTierHistory().recordRejected(reference, estimatedItemSize);
+        }
+
+        byte[] compressedPayload = null;
+
+        if(compressionCodec != CompressionCodec.NONE)
+        {
+            // Compressed state that fits still stays on the DynamoDB path
+            compressedPayload = compress(payload, compressionCodec, compressionLevel);
+
+            final StateWrapper wrapper = new StateWrapper();
+            wrapper.binaryState = compressedPayload;
+            wrapper.codec = compressionCodec;
+            wrapper.format = format;
+            wrapper.stateHash = stateHash;
+
+            final int compressedItemSize = DynamoDBS3Utils.estimateItemSize(
+                    itemId, owningType, DynamoDBS3Utils.FIELD_NAME_BINARY_DATA, wrapper.binaryState.length)
+                    + codecSize
+                    + overheadSize;
+
+            if(compressedItemSize <= inlineSizeThreshold)
+            {
+                final Boolean written = await(writeInline(reference, stateClass, wrapper, compressedItemSize, previous));
+                if(written)
+                {
+                    if(cached)
+                    {
+                        services.getNearCache().put(reference, payload);
+                    }
+                    return Task.done();
+                }
+            }
+        }
+
+        if(chunkedMaximumSize > 0 && payload.length <= chunkedMaximumSize
+                && dynamoDBStorageExtension instanceof DynamoS3DynamoStorageExtension)
+        {
+            // Too big for one item, but not so big that S3 pays off
+            final ChunkManifest chunkManifest = await(writeChunked(
+                    reference,
+                    stateClass,
+                    compressedPayload != null ? compressedPayload : payload,
+                    compressedPayload != null ? compressionCodec : null,
+                    format,
+                    stateHash,
+                    previousHash));
+            if(chunkManifest != null)
+            {
+                services.getTierHistory().recordWrite(reference, StorageTier.DYNAMODB_CHUNKED, estimatedItemSize, stateHash, null, chunkManifest);
+                if(cached)
+                {
+                    services.getNearCache().put(reference, payload);
+                }
+                return Task.done();
+            }
+        }
+
+        // If we got here, we must be too big
+        final byte[] s3Payload;
+        if(s3CompressionCodec == CompressionCodec.NONE)
+        {
+            s3Payload = payload;
+        }
+        else if(s3CompressionCodec == compressionCodec && s3CompressionLevel == compressionLevel)
+        {
+            s3Payload = compressedPayload;
+        }
+        else
+        {
+            s3Payload = compress(payload, s3CompressionCodec, s3CompressionLevel);
+        }
+
+        await(callS3(() -> callNow(() -> {
+            writeToS3(reference, stateClass, s3Location, s3Payload);
+            return null;
+        })));
+        await(writeS3Pointer(reference, stateClass, s3Location, format, stateHash, previousHash));
+        services.getTierHistory().recordWrite(reference, StorageTier.S3, estimatedItemSize, stateHash, s3Location, null);
+        if(s3Payload.length <= s3CacheMaximumEntryBytes)
+        {
+            services.getS3PayloadCache().put(s3Location.getContentHash(), s3Payload);
+        }
+        if(cached)
+        {
+            services.getNearCache().put(reference, payload);
+        }
+        return Task.done();
+    }
+
+    /**
+     * Writes the wrapped state to DynamoDB, completing with {@code false} if the item was rejected as too large.
+     * Unless the state is known to have been inline or missing, the put hands back the item it replaced, so the
+     * S3 object or chunks that item pointed to are deleted even when the tier history no longer remembers them.
+     */
+    private Task<Boolean> writeInline(
+            final RemoteReference<?> reference,
+            final Class<?> stateClass,
+            final StateWrapper wrapper,
+            final int itemSize,
+            final StateTierHistory.Placement previous)
+    {
+        try
+        {
+            if(!(dynamoDBStorageExtension instanceof DynamoS3DynamoStorageExtension))
+            {
+                await(putItemAlone(reference, wrapper, stateClass));
+                releasePrevious(reference, stateClass, previous);
+            }
+            else if(previous != null && previous.getTier() == StorageTier.DYNAMODB)
+            {
+                // Nothing outside the item to delete, so the put may be batched
+                await(putItem(reference, wrapper, stateClass));
+            }
+            else
+            {
+                final Item oldItem = await(callDynamo(() -> callNow(() -> replaceItem(reference, wrapper, stateClass, null))));
+                if(oldItem != null)
+                {
+                    releaseReplaced(reference, stateClass, oldItem, wrapper);
+                }
+            }
+            services.getTierHistory().recordWrite(reference, StorageTier.DYNAMODB, itemSize, wrapper.stateHash);
+            return Task.fromValue(true);
+        }
+        catch(CompletionException e)
+        {
+            // Was this because of the size of the record?
+            if(e.getCause() instanceof AmazonServiceException)
+            {
+                AmazonServiceException ase = (AmazonServiceException) e.getCause();
+                final String errorCode = ase.getErrorCode();
+                if(!errorCode.equals("ValidationException"))
+                {
+                    throw e;
+                }
+            }
+        }
+
+        return Task.fromValue(false);
+    }
+
+    /**
+     * Writes a payload as a new set of chunks and switches the actor's item over to them, completing with the
+     * new manifest, or {@code null} if the table does not exist yet.
+     */
+    private Task<ChunkManifest> writeChunked(
+            final RemoteReference<?> reference,
+            final Class<?> stateClass,
+            final byte[] payload,
+            final CompressionCodec codec,
+            final StateFormat format,
+            final String stateHash,
+            final String expectedHash)
+    {
+        final String tableName = getTableName(stateClass);
+        final String itemId = DynamoDBS3Utils.generateItemId(reference, stateClass);
+
+        final ChunkManifest chunkManifest;
+        try
+        {
+            chunkManifest = await(callDynamo(() -> chunkStore.write(tableName, itemId, payload, codec)));
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof ResourceNotFoundException)
+            {
+                // The table is created by the first regular write, until then S3 it is
+                return Task.fromValue(null);
+            }
+            throw e;
+        }
+
+        final StateWrapper wrapper = new StateWrapper();
+        wrapper.chunkManifest = chunkManifest;
+        wrapper.format = format;
+        wrapper.stateHash = stateHash;
+
+        try
+        {
+            await(switchItem(reference, wrapper, stateClass, expectedHash));
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof ConditionalCheckFailedException)
+            {
+                // Nothing refers to the new chunks
+                deleteChunks(reference, stateClass, chunkManifest);
+            }
+            throw e;
+        }
+
+        return Task.fromValue(chunkManifest);
+    }
+
+    /**
+     * Switches the actor's item over to a wrapped state stored outside of it, then deletes whatever the item
+     * referred to before. The switch only happens if the item still holds the state last seen hashing to
+     * {@code expectedHash}, so a writer that fell behind cannot replace a newer state, see
+     * {@link DynamoItemSwitch}. A switch rejected that way leaves the new copy, which nothing refers to, for
+     * the caller to delete.
+     */
+    private Task<Void> switchItem(
+            final RemoteReference<?> reference,
+            final StateWrapper wrapper,
+            final Class<?> stateClass,
+            final String expectedHash)
+    {
+        if(!(dynamoDBStorageExtension instanceof DynamoS3DynamoStorageExtension))
+        {
+            // Items of a plain DynamoDB extension cannot be built here, so they are put unconditionally
+            return putItemAlone(reference, wrapper, stateClass);
+        }
+
+        final Item oldItem;
+        try
+        {
+            oldItem = await(callDynamo(() -> callNow(() -> replaceItem(reference, wrapper, stateClass, expectedHash))));
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof ConditionalCheckFailedException)
+            {
+                // Another writer got there first, what we know about the item is out of date
+                services.getTierHistory().forget(reference);
+            }
+            throw e;
+        }
+
+        if(oldItem != null)
+        {
+            releaseReplaced(reference, stateClass, oldItem, wrapper);
+        }
+        return Task.done();
+    }
+
+    /**
+     * Puts the item for a wrapped state, handing back the item it replaced.
+     */
+    private Item replaceItem(
+            final RemoteReference<?> reference,
+            final StateWrapper wrapper,
+            final Class<?> stateClass,
+            final String expectedHash)
+    {
+        final Item item = ((DynamoS3DynamoStorageExtension) dynamoDBStorageExtension)
+                .buildPutItem(reference, wrapper, stateClass, mapper);
+
+        return itemSwitch.replace(getTableName(stateClass), item, expectedHash);
+    }
+
+    /**
+     * Deletes the S3 object and chunks a replaced item referred to, unless its replacement still does.
+     */
+    private void releaseReplaced(
+            final RemoteReference<?> reference,
+            final Class<?> stateClass,
+            final Item oldItem,
+            final StateWrapper replacement)
+    {
+        final S3Location oldS3Location;
+        final ChunkManifest oldChunkManifest;
+        try
+        {
+            oldS3Location = DynamoDBS3Utils.readS3Location(oldItem, mapper);
+            oldChunkManifest = DynamoDBS3Utils.readChunkManifest(oldItem, mapper);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
+
+        if(oldS3Location != null && (replacement.s3Location == null
+                || !oldS3Location.getItemName().equals(replacement.s3Location.getItemName())
+                || !oldS3Location.getBucketName().equals(replacement.s3Location.getBucketName())))
+        {
+            deleteS3Object(oldS3Location);
+        }
+        if(oldChunkManifest != null && (replacement.chunkManifest == null
+                || !oldChunkManifest.getVersion().equals(replacement.chunkManifest.getVersion())))
+        {
+            deleteChunks(reference, stateClass, oldChunkManifest);
+        }
+    }
+
+    private Task<Void> deleteS3Object(final S3Location s3Location)
+    {
+        return callS3(() -> callNow(() -> {
+            s3Connection.getS3Client().deleteObject(s3Location.getBucketName(), s3Location.getItemName());
+            return null;
+        }));
+    }
+
+    /**
+     * Reads and joins the chunks of a state, completing with the serialized state, or with null if a write has
+     * replaced the chunks in the meantime.
+     */
+    private Task<byte[]> readChunks(final RemoteReference<?> reference, final Class<?> stateClass, final ChunkManifest chunkManifest)
+    {
+        final String tableName = getTableName(stateClass);
+        final String itemId = DynamoDBS3Utils.generateItemId(reference, stateClass);
+
+        return Task.from(callDynamo(() -> chunkStore.read(tableName, itemId, chunkManifest))
+                .thenApply(stored -> stored != null && chunkManifest.getCodec() != null ? decompress(stored, chunkManifest.getCodec()) : stored));
+    }
+
+    private Task<Void> deleteChunks(final RemoteReference<?> reference, final Class<?> stateClass, final ChunkManifest chunkManifest)
+    {
+        final String tableName = getTableName(stateClass);
+        final String itemId = DynamoDBS3Utils.generateItemId(reference, stateClass);
+
+        return callDynamo(() -> chunkStore.delete(tableName, itemId, chunkManifest));
+    }
+
+    /**
+     * Deletes the S3 object or chunks the state was stored in before an inline write through a plain DynamoDB
+     * extension moved it back into the actor's item, which hands back nothing to go by. What the tier history no
+     * longer remembers is left behind, S3 objects for the {@link S3OrphanSweeper}.
+     */
+    private void releasePrevious(final RemoteReference<?> reference, final Class<?> stateClass, final StateTierHistory.Placement previous)
+    {
+        if(previous == null)
+        {
+            return;
+        }
+        if(previous.getS3Location() != null)
+        {
+            deleteS3Object(previous.getS3Location());
+        }
+        if(previous.getChunkManifest() != null)
+        {
+            deleteChunks(reference, stateClass, previous.getChunkManifest());
+        }
+    }
+
+    private void writeToS3(
+            final RemoteReference<?> reference,
+            final Class<?> stateClass,
+            final S3Location s3Location,
+            final byte[] payload)
+    {
+        final ObjectMetadata metadata = newS3Metadata(reference, stateClass, s3Location.getCodec());
+        metadata.setContentLength(payload.length);
+        s3Location.setContentLength((long) payload.length);
+        s3Location.setContentHash(DynamoDBS3Utils.contentHash(payload));
+
+        s3Connection.getS3Client().putObject(
+                s3Location.getBucketName(),
+                s3Location.getItemName(),
+                new ByteArrayInputStream(payload),
+                metadata);
+    }
+
+    /**
+     * Publishes the pointer to an S3 object, which must only happen once the object has been written. Every
+     * object has a key of its own, so readers of the previous pointer keep reading a complete object.
+     */
+    private Task<Void> writeS3Pointer(
+            final RemoteReference<?> reference,
+            final Class<?> stateClass,
+            final S3Location s3Location,
+            final StateFormat format,
+            final String stateHash,
+            final String expectedHash)
+    {
+        final StateWrapper wrapper = new StateWrapper();
+        wrapper.s3Location = s3Location;
+        wrapper.format = format;
+        wrapper.stateHash = stateHash;
+
+        try
+        {
+            await(switchItem(reference, wrapper, stateClass, expectedHash));
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof ConditionalCheckFailedException)
+            {
+                // Nothing refers to the new object
+                deleteS3Object(s3Location);
+            }
+            throw e;
+        }
+        return Task.done();
+    }
+
+    /**
+     * Puts the item for a wrapped state, batched with puts of other actors when batching is enabled.
+     */
+    private Task<Void> putItem(final RemoteReference<?> reference, final StateWrapper wrapper, final Class<?> stateClass)
+    {
+        if(services.getBatchWriter() == null)
+        {
+            return putItemAlone(reference, wrapper, stateClass);
+        }
+
+        final Item item = ((DynamoS3DynamoStorageExtension) dynamoDBStorageExtension)
+                .buildPutItem(reference, wrapper, stateClass, mapper);
+
+        return Task.from(services.getBatchWriter().put(
+                getTableName(stateClass),
+                DynamoDBS3Utils.generateItemId(reference, stateClass),
+                item,
+                () -> putItemAlone(reference, wrapper, stateClass)));
+    }
+
+    private Task<Void> putItemAlone(final RemoteReference<?> reference, final StateWrapper wrapper, final Class<?> stateClass)
+    {
+        return callDynamo(() -> dynamoDBStorageExtension.writeState(reference, wrapper, stateClass));
+    }
+
+    /**
+     * Calls DynamoDB within the concurrency limit, retrying transient failures. Each attempt takes its own permit,
+     * so no permit is held while backing off.
+     */
+    private <T> Task<T> callDynamo(final Supplier<? extends CompletableFuture<T>> call)
+    {
+        return Task.from(services.callDynamo(call));
+    }
+
+    /**
+     * Calls S3 within the concurrency limit, retrying transient failures. Each attempt takes its own permit,
+     * so no permit is held while backing off.
+     */
+    private <T> Task<T> callS3(final Supplier<? extends CompletableFuture<T>> call)
+    {
+        return Task.from(services.callS3(call));
+    }
+
+    /**
+     * Makes a blocking call on the current thread.
+     */
+    private static <T> CompletableFuture<T> callNow(final Supplier<T> call)
+    {
+        try
+        {
+            return CompletableFuture.completedFuture(call.get());
+        }
+        catch(RuntimeException e)
+        {
+            final CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private String getTableName(final Class<?> stateClass)
+    {
+        return DynamoDBS3Utils.getTableName(dynamoTableName, stateClass);
+    }
+
+    /**
+     * Picks a key no other write uses, so an object is never overwritten while a pointer to it may be read.
+     */
+    private S3Location newS3Location(final RemoteReference<?> reference)
+    {
+        final String documentId = s3StorageExtension.generateDocumentId(reference);
+        return new S3Location()
+                .withBucketName(chooseBucket(documentId))
+                .withS3ItemName(s3KeyLayout.generateKey(documentId, UUID.randomUUID().toString()))
+                .withKeyLayout(s3KeyLayout)
+                .withCodec(s3CompressionCodec != CompressionCodec.NONE ? s3CompressionCodec : null);
+    }
+
+    /**
+     * Spreads actors over the shard buckets, each actor always to the same one as long as the list is unchanged.
+     * Objects are always read and deleted through their pointers, so changing the list only affects new writes.
+     */
+    private String chooseBucket(final String documentId)
+    {
+        if(s3BucketNames.isEmpty())
+        {
+            return s3StorageExtension.getBucketName();
+        }
+        return s3BucketNames.get(Math.floorMod(documentId.hashCode(), s3BucketNames.size()));
+    }
+
+    private ObjectMetadata newS3Metadata(final RemoteReference<?> reference, final Class<?> stateClass, final CompressionCodec codec)
+    {
+        final StateFormat format = getStateFormat(stateClass);
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(format.getContentType());
+        if(format.isBinary())
+        {
+            metadata.addUserMetadata(DynamoDBS3Utils.METADATA_FORMAT, format.name());
+        }
+        S3OrphanSweeper.addOwner(
+                metadata,
+                getTableName(stateClass),
+                DynamoDBS3Utils.generateItemId(reference, stateClass));
+        if(codec != null && codec != CompressionCodec.NONE)
+        {
+            metadata.setContentEncoding(codec.getContentEncoding());
+            metadata.addUserMetadata(DynamoDBS3Utils.METADATA_CODEC, codec.name());
+        }
+        return metadata;
+    }
+
+    /**
+     * Serializes the state into memory if it is small enough to be stored in DynamoDB, hashing it on the way.
+     * Larger states are streamed into the S3 object at {@code s3Location} as they are serialized, which
+     * completes the upload unless the state hashes to {@code unchangedHash}, in which case the upload is
+     * abandoned. Below the part size nothing was sent by then. Streaming requires {@code mayStream} to tell that
+     * the caller holds an S3 permit for it. Otherwise serializing stops there, and {@code null} is returned for
+     * the caller to acquire one and serialize again.
+     */
+    private SpillingOutputStream serializeState(
+            final RemoteReference<?> reference,
+            final Class<?> stateClass,
+            final Object state,
+            final S3Location s3Location,
+            final String unchangedHash,
+            final boolean mayStream)
+    {
+        final S3UploadOutputStream upload = new S3UploadOutputStream(
+                s3Connection.getS3Client(),
+                s3Location.getBucketName(),
+                s3Location.getItemName(),
+                newS3Metadata(reference, stateClass, s3Location.getCodec()),
+                s3PartSize,
+                services.getS3TransferExecutor(),
+                s3TransferParallelism);
+
+        // Hashes the bytes as stored, so the pointer can address them in the payload cache
+        final MessageDigest digest = DynamoDBS3Utils.newContentDigest();
+        final AtomicBoolean refused = new AtomicBoolean();
+        final SpillingOutputStream out = new SpillingOutputStream(
+                spillThreshold(),
+                () -> {
+                    if(!mayStream)
+                    {
+                        refused.set(true);
+                        throw new IOException("Streaming into S3 needs a permit");
+                    }
+                    // The parts are retried by the client, a failed upload is left to the caller to repeat
+                    return s3CompressionCodec.compress(new DigestOutputStream(upload, digest), s3CompressionLevel);
+                },
+                DynamoDBS3Utils.newContentDigest());
+
+        try
+        {
+            // Bound to what is actually written, which for write-behind is a TokenBuffer snapshot of the state
+            stateSerializers.writerFor(getStateFormat(stateClass), state.getClass()).writeValue(out, state);
+            if(out.isSpilled() && unchangedHash != null && unchangedHash.equals(DynamoDBS3Utils.toHex(out.digest())))
+            {
+                upload.abort();
+                return out;
+            }
+            out.close();
+            if(out.isSpilled())
+            {
+                s3Location.setContentLength(upload.getSize());
+                s3Location.setContentHash(DynamoDBS3Utils.toHex(digest.digest()));
+            }
+            return out;
+        }
+        catch(IOException e)
+        {
+            if(refused.get())
+            {
+                return null;
+            }
+            upload.abort();
+            throw new UncheckedException(e);
+        }
+        catch(RuntimeException e)
+        {
+            if(refused.get())
+            {
+                // Serializers may have wrapped the refusal
+                return null;
+            }
+            upload.abort();
+            services.getS3Retry().recordFailure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Whether the state last persisted was likely streamed into S3. The size of a state is only known once
+     * written, so after a read a state stored in S3 is taken to be that large.
+     */
+    private boolean isLarge(final StateTierHistory.Placement placement)
+    {
+        return placement.getSize() == StateTierHistory.UNKNOWN_SIZE
+                ? placement.getTier() == StorageTier.S3
+                : placement.getSize() > spillThreshold();
+    }
+
+    /**
+     * Size of serialized state beyond which it is streamed into S3 rather than buffered.
+     */
+    private int spillThreshold()
+    {
+        final int threshold = compressionCodec == CompressionCodec.NONE
+                ? inlineSizeThreshold
+                : Math.max(inlineSizeThreshold, s3StreamingThreshold);
+        return Math.max(threshold, chunkedMaximumSize);
+    }
+
+    private byte[] decompress(final byte[] payload, final CompressionCodec codec)
+    {
+        try
+        {
+            return codec.decompress(payload);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
+    }
+
+    private byte[] compress(final byte[] payload, final CompressionCodec codec, final int level)
+    {
+        try
+        {
+            return codec.compress(payload, level);
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
+    }
+
+    public void setName(final String name)
+    {
+        this.name = name;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    public DynamoDBConfiguration getDynamoDBConfiguration()
+    {
+        return dynamoDBConfiguration;
+    }
+
+    public void setDynamoDBConfiguration(final DynamoDBConfiguration dynamoDBConfiguration)
+    {
+        this.dynamoDBConfiguration = dynamoDBConfiguration;
+    }
+
+    public S3Configuration getS3Configuration()
+    {
+        return s3Configuration;
+    }
+
+    public void setS3Configuration(final S3Configuration s3Configuration)
+    {
+        this.s3Configuration = s3Configuration;
+    }
+
+    public String getDefaultDynamoTableName()
+    {
+        return defaultDynamoTableName;
+    }
+
+    public void setDefaultDynamoTableName(final String defaultDynamoTableName)
+    {
+        this.defaultDynamoTableName = defaultDynamoTableName;
+    }
+
+    public StateFormat getStateFormat()
+    {
+        return stateFormat;
+    }
+
+    /**
+     * Sets the format states are written in, unless their type names its own in {@link DynamoS3StateConfiguration#format()}.
+     * Binary formats are smaller and quicker to encode, so more states fit inline, but are stored inline as opaque
+     * binary rather than as a DynamoDB document. States already stored are read in whatever format they are in.
+     */
+    public void setStateFormat(final StateFormat stateFormat)
+    {
+        this.stateFormat = stateFormat;
+    }
+
+    public int getInlineSizeThreshold()
+    {
+        return inlineSizeThreshold;
+    }
+
+    /**
+     * Sets the estimated DynamoDB item size, in bytes, above which state is written directly to S3
+     * instead of being attempted inline first.
+     */
+    public void setInlineSizeThreshold(final int inlineSizeThreshold)
+    {
+        this.inlineSizeThreshold = inlineSizeThreshold;
+    }
+
+    public CompressionCodec getCompressionCodec()
+    {
+        return compressionCodec;
+    }
+
+    /**
+     * Sets the codec used to compress states too large to be stored in DynamoDB as plain JSON. When the
+     * compressed form fits it is stored in DynamoDB as a binary attribute, otherwise the state goes to S3.
+     * {@link CompressionCodec#NONE}, the default, disables the compressed tier.
+     */
+    public void setCompressionCodec(final CompressionCodec compressionCodec)
+    {
+        this.compressionCodec = compressionCodec;
+    }
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(final int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public CompressionCodec getS3CompressionCodec()
+    {
+        return s3CompressionCodec;
+    }
+
+    /**
+     * Sets the codec used to compress states written to S3. The codec is recorded in the pointer, so objects
+     * written with any codec, or none, remain readable.
+     */
+    public void setS3CompressionCodec(final CompressionCodec s3CompressionCodec)
+    {
+        this.s3CompressionCodec = s3CompressionCodec;
+    }
+
+    public int getS3CompressionLevel()
+    {
+        return s3CompressionLevel;
+    }
+
+    public void setS3CompressionLevel(final int s3CompressionLevel)
+    {
+        this.s3CompressionLevel = s3CompressionLevel;
+    }
+
+    public int getS3StreamingThreshold()
+    {
+        return s3StreamingThreshold;
+    }
+
+    /**
+     * Sets the serialized size, in bytes, above which a state is streamed straight into S3 instead of being
+     * buffered to try the compressed DynamoDB tier. Without compression, states are streamed as soon as they
+     * outgrow the inline threshold.
+     */
+    public void setS3StreamingThreshold(final int s3StreamingThreshold)
+    {
+        this.s3StreamingThreshold = s3StreamingThreshold;
+    }
+
+    public int getS3PartSize()
+    {
+        return s3PartSize;
+    }
+
+    /**
+     * Sets the multipart upload part size used when streaming states into S3, which also bounds the memory
+     * used per upload. S3 requires at least 5 MB.
+     */
+    public void setS3PartSize(final int s3PartSize)
+    {
+        this.s3PartSize = s3PartSize;
+    }
+
+    public int getS3TransferParallelism()
+    {
+        return s3TransferParallelism;
+    }
+
+    /**
+     * Sets how many parts of a single object are uploaded, or ranges downloaded, concurrently.
+     */
+    public void setS3TransferParallelism(final int s3TransferParallelism)
+    {
+        this.s3TransferParallelism = s3TransferParallelism;
+    }
+
+    public int getS3TransferThreads()
+    {
+        return s3TransferThreads;
+    }
+
+    /**
+     * Sets the number of threads shared by all parallel S3 transfers.
+     */
+    public void setS3TransferThreads(final int s3TransferThreads)
+    {
+        this.s3TransferThreads = s3TransferThreads;
+    }
+
+    public int getChunkedMaximumSize()
+    {
+        return chunkedMaximumSize;
+    }
+
+    /**
+     * Sets the serialized size up to which states too large for one DynamoDB item are split across several
+     * items rather than written to S3, which spares small-to-medium states an S3 round trip. {@code 0}, the
+     * default, sends all of them to S3. States read back from chunks are held in memory whole.
+     */
+    public void setChunkedMaximumSize(final int chunkedMaximumSize)
+    {
+        this.chunkedMaximumSize = chunkedMaximumSize;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the payload size of each chunk item, which must leave room under DynamoDB's 400KB item limit for
+     * the key and attribute names.
+     */
+    public void setChunkSize(final int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    public long getS3SweepIntervalMillis()
+    {
+        return s3SweepIntervalMillis;
+    }
+
+    /**
+     * Sets how long to wait between sweeps of the bucket for orphaned objects, counted from the end of the
+     * previous sweep. {@code 0}, the default, only sweeps when {@link #sweepOrphans} is called. Every sweep lists
+     * the whole bucket, so it is best run rarely and on one node.
+     */
+    public void setS3SweepIntervalMillis(final long s3SweepIntervalMillis)
+    {
+        this.s3SweepIntervalMillis = s3SweepIntervalMillis;
+    }
+
+    public long getS3SweepGracePeriodMillis()
+    {
+        return s3SweepGracePeriodMillis;
+    }
+
+    /**
+     * Sets how old an object must be before a sweep may delete it, which must comfortably exceed the time
+     * between uploading an object and publishing its pointer.
+     */
+    public void setS3SweepGracePeriodMillis(final long s3SweepGracePeriodMillis)
+    {
+        this.s3SweepGracePeriodMillis = s3SweepGracePeriodMillis;
+    }
+
+    public int getS3SweepParallelism()
+    {
+        return s3SweepParallelism;
+    }
+
+    /**
+     * Sets how many objects a sweep checks at once.
+     */
+    public void setS3SweepParallelism(final int s3SweepParallelism)
+    {
+        this.s3SweepParallelism = s3SweepParallelism;
+    }
+
+    public int getS3SweepPageSize()
+    {
+        return s3SweepPageSize;
+    }
+
+    /**
+     * Sets how many objects a sweep lists per request, at most 1000.
+     */
+    public void setS3SweepPageSize(final int s3SweepPageSize)
+    {
+        this.s3SweepPageSize = s3SweepPageSize;
+    }
+
+    /**
+     * The sweeper of this extension's buckets, created on first use.
+     */
+    public synchronized S3OrphanSweeper getS3Sweeper()
+    {
+        if(s3Sweeper == null)
+        {
+            s3Sweeper = new S3OrphanSweeper(
+                    s3Connection.getS3Client(),
+                    dynamoDBConnection.getDynamoDB(),
+                    mapper,
+                    services.getS3Limiter(),
+                    services.getS3Retry(),
+                    services.getDynamoLimiter(),
+                    services.getDynamoRetry(),
+                    services.getWorkerExecutor(),
+                    s3SweepParallelism,
+                    s3SweepGracePeriodMillis,
+                    s3SweepPageSize);
+        }
+        return s3Sweeper;
+    }
+
+    public long getS3ParallelDownloadThreshold()
+    {
+        return s3ParallelDownloadThreshold;
+    }
+
+    /**
+     * Sets the stored object size, in bytes, above which states are read from S3 with parallel ranged GETs
+     * of {@link #getS3PartSize()} bytes each.
+     */
+    public void setS3ParallelDownloadThreshold(final long s3ParallelDownloadThreshold)
+    {
+        this.s3ParallelDownloadThreshold = s3ParallelDownloadThreshold;
+    }
+
+    public long getNearCacheMaximumBytes()
+    {
+        return nearCacheMaximumBytes;
+    }
+
+    /**
+     * Sets the total size of the serialized states the near cache may hold. Only states whose class is
+     * annotated with {@code @DynamoS3StateConfiguration(nearCache = true)} are cached.
+     */
+    public void setNearCacheMaximumBytes(final long nearCacheMaximumBytes)
+    {
+        this.nearCacheMaximumBytes = nearCacheMaximumBytes;
+    }
+
+    public long getNearCacheExpireAfterWriteMillis()
+    {
+        return nearCacheExpireAfterWriteMillis;
+    }
+
+    public void setNearCacheExpireAfterWriteMillis(final long nearCacheExpireAfterWriteMillis)
+    {
+        this.nearCacheExpireAfterWriteMillis = nearCacheExpireAfterWriteMillis;
+    }
+
+    public CacheStats getNearCacheStats()
+    {
+        return services.getNearCache().stats();
+    }
+
+    public long getS3CacheMaximumBytes()
+    {
+        return s3CacheMaximumBytes;
+    }
+
+    /**
+     * Sets the heap budget of the local cache of S3 payloads, which are keyed by content hash. 0, the default,
+     * keeps no payloads on the heap, though they still spill to the {@link #setS3CacheDirectory directory}, if any.
+     */
+    public void setS3CacheMaximumBytes(final long s3CacheMaximumBytes)
+    {
+        this.s3CacheMaximumBytes = s3CacheMaximumBytes;
+    }
+
+    public int getS3CacheMaximumEntryBytes()
+    {
+        return s3CacheMaximumEntryBytes;
+    }
+
+    /**
+     * Sets the size of the largest stored S3 object that is cached locally. Larger objects are streamed.
+     */
+    public void setS3CacheMaximumEntryBytes(final int s3CacheMaximumEntryBytes)
+    {
+        this.s3CacheMaximumEntryBytes = s3CacheMaximumEntryBytes;
+    }
+
+    public String getS3CacheDirectory()
+    {
+        return s3CacheDirectory;
+    }
+
+    /**
+     * Sets a local directory that S3 payloads evicted from the heap spill to. {@code null}, the default,
+     * keeps the cache on the heap only.
+     */
+    public void setS3CacheDirectory(final String s3CacheDirectory)
+    {
+        this.s3CacheDirectory = s3CacheDirectory;
+    }
+
+    public long getS3CacheDiskMaximumBytes()
+    {
+        return s3CacheDiskMaximumBytes;
+    }
+
+    public void setS3CacheDiskMaximumBytes(final long s3CacheDiskMaximumBytes)
+    {
+        this.s3CacheDiskMaximumBytes = s3CacheDiskMaximumBytes;
+    }
+
+    public CacheStats getS3CacheStats()
+    {
+        return services.getS3PayloadCache().heapStats();
+    }
+
+    public CacheStats getS3CacheDiskStats()
+    {
+        return services.getS3PayloadCache().diskStats();
+    }
+
+    public int getDynamoMaxConcurrency()
+    {
+        return dynamoMaxConcurrency;
+    }
+
+    /**
+     * Sets how many DynamoDB calls may be in flight at once. Keep it within the client's connection pool.
+     */
+    public void setDynamoMaxConcurrency(final int dynamoMaxConcurrency)
+    {
+        this.dynamoMaxConcurrency = dynamoMaxConcurrency;
+    }
+
+    public int getS3MaxConcurrency()
+    {
+        return s3MaxConcurrency;
+    }
+
+    /**
+     * Sets how many S3 transfers may be in flight at once. A large transfer can itself use up to
+     * {@link #setS3TransferParallelism s3TransferParallelism} connections.
+     */
+    public void setS3MaxConcurrency(final int s3MaxConcurrency)
+    {
+        this.s3MaxConcurrency = s3MaxConcurrency;
+    }
+
+    public int getMaxQueueLength()
+    {
+        return maxQueueLength;
+    }
+
+    /**
+     * Sets how many callers may wait for each tier. Callers beyond it fail with a
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    public void setMaxQueueLength(final int maxQueueLength)
+    {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    public ConcurrencyLimiter.Policy getConcurrencyPolicy()
+    {
+        return concurrencyPolicy;
+    }
+
+    public void setConcurrencyPolicy(final ConcurrencyLimiter.Policy concurrencyPolicy)
+    {
+        this.concurrencyPolicy = concurrencyPolicy;
+    }
+
+    public ConcurrencyLimiter getDynamoLimiter()
+    {
+        return services != null ? services.getDynamoLimiter() : null;
+    }
+
+    public ConcurrencyLimiter getS3Limiter()
+    {
+        return services != null ? services.getS3Limiter() : null;
+    }
+
+    public boolean isS3HedgedReads()
+    {
+        return s3HedgedReads;
+    }
+
+    /**
+     * Enables hedging S3 reads of objects up to {@link #setS3CacheMaximumEntryBytes s3CacheMaximumEntryBytes}:
+     * a read that takes longer than the {@link #setS3HedgePercentile percentile} of recent reads is issued a
+     * second time, and the first copy to arrive is used.
+     */
+    public void setS3HedgedReads(final boolean s3HedgedReads)
+    {
+        this.s3HedgedReads = s3HedgedReads;
+    }
+
+    public double getS3HedgePercentile()
+    {
+        return s3HedgePercentile;
+    }
+
+    public void setS3HedgePercentile(final double s3HedgePercentile)
+    {
+        this.s3HedgePercentile = s3HedgePercentile;
+    }
+
+    public double getS3HedgeBudget()
+    {
+        return s3HedgeBudget;
+    }
+
+    /**
+     * Sets the largest share of S3 reads that may be hedged.
+     */
+    public void setS3HedgeBudget(final double s3HedgeBudget)
+    {
+        this.s3HedgeBudget = s3HedgeBudget;
+    }
+
+    public long getS3HedgeInitialDelayMillis()
+    {
+        return s3HedgeInitialDelayMillis;
+    }
+
+    /**
+     * Sets the hedging delay used until enough reads have been timed to derive it from their latencies.
+     */
+    public void setS3HedgeInitialDelayMillis(final long s3HedgeInitialDelayMillis)
+    {
+        this.s3HedgeInitialDelayMillis = s3HedgeInitialDelayMillis;
+    }
+
+    public RequestHedger getS3Hedger()
+    {
+        return services != null ? services.getS3Hedger() : null;
+    }
+
+    public double getDynamoMaximumRate()
+    {
+        return dynamoMaximumRate;
+    }
+
+    /**
+     * Sets the DynamoDB calls per second allowed while DynamoDB does not throttle. Throttling halves the rate,
+     * which then recovers gradually.
+     */
+    public void setDynamoMaximumRate(final double dynamoMaximumRate)
+    {
+        this.dynamoMaximumRate = dynamoMaximumRate;
+    }
+
+    public double getS3MaximumRate()
+    {
+        return s3MaximumRate;
+    }
+
+    /**
+     * Sets the S3 calls per second allowed while S3 does not throttle.
+     */
+    public void setS3MaximumRate(final double s3MaximumRate)
+    {
+        this.s3MaximumRate = s3MaximumRate;
+    }
+
+    public int getRetryMaximumAttempts()
+    {
+        return retryMaximumAttempts;
+    }
+
+    /**
+     * Sets how often a call failing with throttling, a 5xx response or a connection error is attempted.
+     */
+    public void setRetryMaximumAttempts(final int retryMaximumAttempts)
+    {
+        this.retryMaximumAttempts = retryMaximumAttempts;
+    }
+
+    public long getRetryBaseDelayMillis()
+    {
+        return retryBaseDelayMillis;
+    }
+
+    public void setRetryBaseDelayMillis(final long retryBaseDelayMillis)
+    {
+        this.retryBaseDelayMillis = retryBaseDelayMillis;
+    }
+
+    public long getRetryMaximumDelayMillis()
+    {
+        return retryMaximumDelayMillis;
+    }
+
+    public void setRetryMaximumDelayMillis(final long retryMaximumDelayMillis)
+    {
+        this.retryMaximumDelayMillis = retryMaximumDelayMillis;
+    }
+
+    public AdaptiveRetry getDynamoRetry()
+    {
+        return services != null ? services.getDynamoRetry() : null;
+    }
+
+    public AdaptiveRetry getS3Retry()
+    {
+        return services != null ? services.getS3Retry() : null;
+    }
+
+    public long getBatchWriteWindowMillis()
+    {
+        return batchWriteWindowMillis;
+    }
+
+    /**
+     * Sets how long a DynamoDB put waits for puts of other actors to the same table, to be sent together as
+     * one BatchWriteItem. {@code 0}, the default, sends every put on its own.
+     */
+    public void setBatchWriteWindowMillis(final long batchWriteWindowMillis)
+    {
+        this.batchWriteWindowMillis = batchWriteWindowMillis;
+    }
+
+    public long getBatchReadWindowMillis()
+    {
+        return batchReadWindowMillis;
+    }
+
+    /**
+     * Sets how long a DynamoDB read waits for reads of other actors from the same table, to be sent together
+     * as one BatchGetItem. {@code 0}, the default, reads every item on its own.
+     */
+    public void setBatchReadWindowMillis(final long batchReadWindowMillis)
+    {
+        this.batchReadWindowMillis = batchReadWindowMillis;
+    }
+
+    public int getBatchReadParallelism()
+    {
+        return batchReadParallelism;
+    }
+
+    /**
+     * Sets how many batched reads may continue at once, e.g. fetching their S3 payloads.
+     */
+    public void setBatchReadParallelism(final int batchReadParallelism)
+    {
+        this.batchReadParallelism = batchReadParallelism;
+    }
+
+    public long getWriteBehindWindowMillis()
+    {
+        return writeBehindWindowMillis;
+    }
+
+    /**
+     * Sets how long writes of states annotated with {@code @DynamoS3StateConfiguration(writeBehind = true)} are
+     * held back, during which later writes of the same actor replace them.
+     */
+    public void setWriteBehindWindowMillis(final long writeBehindWindowMillis)
+    {
+        this.writeBehindWindowMillis = writeBehindWindowMillis;
+    }
+
+    public int getWriteBehindMaximumDirty()
+    {
+        return writeBehindMaximumDirty;
+    }
+
+    /**
+     * Sets how many actors may have writes held back. Once reached, further writes are persisted before they
+     * complete.
+     */
+    public void setWriteBehindMaximumDirty(final int writeBehindMaximumDirty)
+    {
+        this.writeBehindMaximumDirty = writeBehindMaximumDirty;
+    }
+
+    public int getWriteBehindMaximumAttempts()
+    {
+        return writeBehindMaximumAttempts;
+    }
+
+    /**
+     * Sets how many times a held back write is flushed before it is given up on. The failure is then reported
+     * to the next write of the actor, or the next flush of all writes, e.g. on {@link #stop()}.
+     */
+    public void setWriteBehindMaximumAttempts(final int writeBehindMaximumAttempts)
+    {
+        this.writeBehindMaximumAttempts = writeBehindMaximumAttempts;
+    }
+
+    public WriteBehindStatistics getWriteBehindStatistics()
+    {
+        return writeBehindBuffer.getStatistics();
+    }
+
+    public int getWriteBehindDirtyCount()
+    {
+        return writeBehindBuffer.getDirtyCount();
+    }
+
+    public int getPreloadParallelism()
+    {
+        return preloadParallelism;
+    }
+
+    /**
+     * Sets how many states {@link #preload} fetches at once.
+     */
+    public void setPreloadParallelism(final int preloadParallelism)
+    {
+        this.preloadParallelism = preloadParallelism;
+    }
+
+    public long getTierHistoryMaximumSize()
+    {
+        return tierHistoryMaximumSize;
+    }
+
+    /**
+     * Sets how many actors the extension remembers the storage tier of.
+     */
+    public void setTierHistoryMaximumSize(final long tierHistoryMaximumSize)
+    {
+        this.tierHistoryMaximumSize = tierHistoryMaximumSize;
+    }
+
+    public double getTierHysteresis()
+    {
+        return tierHysteresis;
+    }
+
+    /**
+     * Sets the fraction of the inline threshold a state stored in S3 must shrink below before it moves back
+     * to DynamoDB, so states hovering around the threshold do not alternate between tiers.
+     */
+    public void setTierHysteresis(final double tierHysteresis)
+    {
+        this.tierHysteresis = tierHysteresis;
+    }
+
+    public StateTierHistory getTierHistory()
+    {
+        return services != null ? services.getTierHistory() : null;
+    }
+
+    public String getS3BucketName()
+    {
+        return s3BucketName;
+    }
+
+    public void setS3BucketName(final String s3BucketName)
+    {
+        this.s3BucketName = s3BucketName;
+    }
+
+    public S3KeyLayout getS3KeyLayout()
+    {
+        return s3KeyLayout;
+    }
+
+    /**
+     * Sets how the keys of new S3 objects are laid out. {@link S3KeyLayout#HASH_PREFIXED} avoids the request
+     * rate limits S3 applies per key prefix when many states of one actor type are written at once.
+     */
+    public void setS3KeyLayout(final S3KeyLayout s3KeyLayout)
+    {
+        this.s3KeyLayout = s3KeyLayout;
+    }
+
+    public List<String> getS3BucketNames()
+    {
+        return s3BucketNames;
+    }
+
+    /**
+     * Sets the buckets new S3 objects are spread over, to raise the request rate S3 sustains beyond what one
+     * bucket allows. Empty, the default, writes to the S3 extension's bucket. Buckets dropped from the list keep
+     * being read for as long as pointers to them remain, but are no longer swept unless it is the S3 extension's
+     * bucket.
+     */
+    public void setS3BucketNames(final List<String> s3BucketNames)
+    {
+        this.s3BucketNames = s3BucketNames;
     }
 }
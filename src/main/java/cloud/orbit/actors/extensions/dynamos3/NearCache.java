@@ -0,0 +1,76 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import cloud.orbit.actors.runtime.RemoteReference;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process cache of serialized actor states, bounded by the total size of the cached states. Storing bytes
+ * rather than live objects keeps cached copies isolated from the actors that read them.
+ */
+public class NearCache
+{
+    private final Cache<RemoteReference<?>, byte[]> states;
+
+    public NearCache(final long maximumBytes, final long expireAfterWriteMillis)
+    {
+        this.states = Caffeine.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((RemoteReference<?> reference, byte[] state) -> state.length)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public byte[] get(final RemoteReference<?> reference)
+    {
+        return states.getIfPresent(reference);
+    }
+
+    public void put(final RemoteReference<?> reference, final byte[] serializedState)
+    {
+        states.put(reference, serializedState);
+    }
+
+    public void invalidate(final RemoteReference<?> reference)
+    {
+        states.invalidate(reference);
+    }
+
+    public CacheStats stats()
+    {
+        return states.stats();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads an object of known length as consecutive ranges fetched in parallel, keeping at most
+ * {@code parallelism} ranges in flight or buffered, and presents them as a single stream.
+ */
+public class ParallelRangeInputStream extends InputStream
+{
+    public interface RangeFetcher
+    {
+        /**
+         * Fetches the bytes from {@code start} to {@code end}, both inclusive.
+         */
+        byte[] fetch(long start, long end) throws IOException;
+    }
+
+    private final RangeFetcher fetcher;
+    private final Executor executor;
+    private final long length;
+    private final int rangeSize;
+    private final int parallelism;
+
+    private final Deque<CompletableFuture<byte[]>> ranges = new ArrayDeque<>();
+    private long nextRangeStart;
+    private byte[] current;
+    private int position;
+    private boolean closed;
+
+    public ParallelRangeInputStream(
+            final RangeFetcher fetcher,
+            final Executor executor,
+            final long length,
+            final int rangeSize,
+            final int parallelism)
+    {
+        this.fetcher = fetcher;
+        this.executor = executor;
+        this.length = length;
+        this.rangeSize = rangeSize;
+        this.parallelism = Math.max(1, parallelism);
+
+        fillWindow();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!ensureCurrent())
+        {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!ensureCurrent())
+        {
+            return -1;
+        }
+
+        final int count = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return current != null ? current.length - position : 0;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        current = null;
+        for (final CompletableFuture<byte[]> range : ranges)
+        {
+            range.cancel(false);
+        }
+        ranges.clear();
+    }
+
+    private boolean ensureCurrent() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed");
+        }
+
+        while (current == null || position == current.length)
+        {
+            final CompletableFuture<byte[]> next = ranges.poll();
+            if (next == null)
+            {
+                return false;
+            }
+
+            try
+            {
+                current = next.join();
+                position = 0;
+            }
+            catch (CompletionException e)
+            {
+                close();
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+
+            fillWindow();
+        }
+
+        return true;
+    }
+
+    private void fillWindow()
+    {
+        while (ranges.size() < parallelism && nextRangeStart < length)
+        {
+            final long start = nextRangeStart;
+            final long end = Math.min(length, start + rangeSize) - 1;
+            nextRangeStart = end + 1;
+
+            ranges.add(CompletableFuture.supplyAsync(() -> {
+                try
+                {
+                    return fetcher.fetch(start, end);
+                }
+                catch (IOException e)
+                {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+    }
+}
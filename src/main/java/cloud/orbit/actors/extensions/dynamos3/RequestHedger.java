@@ -0,0 +1,223 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Issues a second copy of a request that has not completed within a high percentile of recent latencies,
+ * and takes whichever copy completes first, cancelling the other. The share of requests that may be hedged is
+ * capped by a budget, so a slow service is not loaded with twice the requests, and a copy is only issued while
+ * the limiter has a permit free for it.
+ */
+public class RequestHedger
+{
+    private static final int SAMPLE_COUNT = 1024;
+    private static final int MINIMUM_SAMPLES = 64;
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    private final double percentile;
+    private final double budget;
+    private final ConcurrencyLimiter limiter;
+    private final ScheduledExecutorService scheduler;
+
+    private final long[] samples = new long[SAMPLE_COUNT];
+    private int sampleCount;
+    private int nextSample;
+    private volatile long delayNanos;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder skippedHedges = new LongAdder();
+
+    /**
+     * @param percentile     latency percentile after which a request is hedged, e.g. {@code 0.95}
+     * @param budget         largest share of requests that may be hedged, e.g. {@code 0.05}
+     * @param initialDelayMillis delay used until enough latencies have been seen
+     * @param limiter        limits the requests in flight, a hedged copy holding a permit of its own
+     * @param scheduler      starts the hedged copies
+     */
+    public RequestHedger(
+            final double percentile,
+            final double budget,
+            final long initialDelayMillis,
+            final ConcurrencyLimiter limiter,
+            final ScheduledExecutorService scheduler)
+    {
+        this.percentile = percentile;
+        this.budget = budget;
+        this.limiter = limiter;
+        this.scheduler = scheduler;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+    }
+
+    /**
+     * Runs a request, hedging it if it is slow. {@code request} must start the request without blocking and
+     * may be called twice; the copy that loses is cancelled. Fails only if every copy started fails.
+     */
+    public <T> CompletableFuture<T> execute(final Supplier<? extends CompletableFuture<T>> request)
+    {
+        requests.increment();
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        final AtomicBoolean settled = new AtomicBoolean();
+        final long start = System.nanoTime();
+
+        start(request, result, outstanding, settled, start, false);
+
+        scheduler.schedule(() -> {
+            if(!result.isDone() && hedges.sum() < budget * requests.sum() + 1)
+            {
+                // The hedged copy adds to the load like any other request, so it is dropped rather than queued
+                if(!limiter.tryAcquire())
+                {
+                    skippedHedges.increment();
+                    return;
+                }
+                hedges.increment();
+                outstanding.incrementAndGet();
+                start(request, result, outstanding, settled, start, true);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+
+        return result;
+    }
+
+    public long getRequestCount()
+    {
+        return requests.sum();
+    }
+
+    public long getHedgeCount()
+    {
+        return hedges.sum();
+    }
+
+    /**
+     * Number of hedged copies that completed before the original.
+     */
+    public long getHedgeWinCount()
+    {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * Number of slow requests not hedged because the limiter had no permit free.
+     */
+    public long getSkippedHedgeCount()
+    {
+        return skippedHedges.sum();
+    }
+
+    public long getDelayMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(delayNanos);
+    }
+
+    private <T> CompletableFuture<T> start(
+            final Supplier<? extends CompletableFuture<T>> request,
+            final CompletableFuture<T> result,
+            final AtomicInteger outstanding,
+            final AtomicBoolean settled,
+            final long start,
+            final boolean hedge)
+    {
+        CompletableFuture<T> copy;
+        try
+        {
+            copy = request.get();
+        }
+        catch(RuntimeException e)
+        {
+            copy = new CompletableFuture<>();
+            copy.completeExceptionally(e);
+        }
+
+        final CompletableFuture<T> started = copy;
+        started.whenComplete((value, e) -> {
+            if(hedge)
+            {
+                // Returned before the result is given out, so callers find the permit free
+                limiter.release();
+            }
+            if(e == null)
+            {
+                // Counted before the result is given out, so callers see the win
+                if(settled.compareAndSet(false, true))
+                {
+                    // Measured from when the request was made, as a hedge that wins from its own start would
+                    // make requests seem quicker than they are and the delay shrink with every win
+                    recordLatency(System.nanoTime() - start);
+                    if(hedge)
+                    {
+                        hedgeWins.increment();
+                    }
+                    result.complete(value);
+                }
+            }
+            else if(outstanding.decrementAndGet() == 0)
+            {
+                result.completeExceptionally(e);
+            }
+        });
+        // Whichever copy is still running once there is a result is not needed any more
+        result.whenComplete((value, e) -> started.cancel(false));
+        return started;
+    }
+
+    private void recordLatency(final long latencyNanos)
+    {
+        long[] snapshot = null;
+        synchronized (samples)
+        {
+            samples[nextSample] = latencyNanos;
+            nextSample = (nextSample + 1) % SAMPLE_COUNT;
+            sampleCount = Math.min(sampleCount + 1, SAMPLE_COUNT);
+            if(sampleCount >= MINIMUM_SAMPLES && nextSample % RECOMPUTE_INTERVAL == 0)
+            {
+                snapshot = Arrays.copyOf(samples, sampleCount);
+            }
+        }
+
+        if(snapshot != null)
+        {
+            Arrays.sort(snapshot);
+            delayNanos = snapshot[(int) Math.min(snapshot.length - 1, Math.floor(percentile * snapshot.length))];
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How the keys of S3 objects are laid out. The layout is recorded in the pointer, and objects are always read
+ * through their pointers, so objects written with different layouts can be read side by side.
+ */
+public enum S3KeyLayout
+{
+    /**
+     * The document id the S3 extension generates, followed by a version. Keys of one actor type share a prefix,
+     * so all of its objects are served by the same S3 partitions.
+     */
+    LEGACY
+            {
+                @Override
+                public String generateKey(final String documentId, final String version)
+                {
+                    return documentId + "/" + version;
+                }
+            },
+
+    /**
+     * {@link #LEGACY} keys behind a short prefix hashed from the document id, which spreads the request rate
+     * evenly over S3 partitions. All objects of one actor share a prefix.
+     */
+    HASH_PREFIXED
+            {
+                @Override
+                public String generateKey(final String documentId, final String version)
+                {
+                    final String hash = DynamoDBS3Utils.contentHash(documentId.getBytes(StandardCharsets.UTF_8));
+                    return hash.substring(0, HASH_PREFIX_LENGTH) + "/" + LEGACY.generateKey(documentId, version);
+                }
+            };
+
+    /**
+     * Number of hex digits in the prefix of {@link #HASH_PREFIXED} keys.
+     */
+    public static final int HASH_PREFIX_LENGTH = 4;
+
+    /**
+     * Generates the key of the {@code version} of an actor's object.
+     */
+    public abstract String generateKey(final String documentId, final String version);
+}
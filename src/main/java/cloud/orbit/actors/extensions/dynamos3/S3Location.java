@@ -32,6 +32,10 @@ public class S3Location
 {
     private String bucketName;
     private String itemName;
+    private CompressionCodec codec;
+    private Long contentLength;
+    private String contentHash;
+    private S3KeyLayout keyLayout;
 
     public String getBucketName()
     {
@@ -53,6 +57,61 @@ public class S3Location
         this.itemName = itemName;
     }
 
+    /**
+     * The codec the object was compressed with, {@code null} for objects written before compression was
+     * supported.
+     */
+    public CompressionCodec getCodec()
+    {
+        return codec;
+    }
+
+    public void setCodec(final CompressionCodec codec)
+    {
+        this.codec = codec;
+    }
+
+    /**
+     * The size of the stored object in bytes, {@code null} for objects written before it was recorded.
+     */
+    public Long getContentLength()
+    {
+        return contentLength;
+    }
+
+    public void setContentLength(final Long contentLength)
+    {
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Hex SHA-256 of the stored object, {@code null} for objects written before it was recorded. Payloads are
+     * cached locally under this hash.
+     */
+    public String getContentHash()
+    {
+        return contentHash;
+    }
+
+    public void setContentHash(final String contentHash)
+    {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * The layout the key was generated with, {@code null} for objects written before it was recorded, which
+     * follow {@link S3KeyLayout#LEGACY} or predate versioned keys.
+     */
+    public S3KeyLayout getKeyLayout()
+    {
+        return keyLayout;
+    }
+
+    public void setKeyLayout(final S3KeyLayout keyLayout)
+    {
+        this.keyLayout = keyLayout;
+    }
+
     public S3Location withBucketName(final String bucketName)
     {
         setBucketName(bucketName);
@@ -64,4 +123,28 @@ public class S3Location
         setItemName(s3ItemName);
         return this;
     }
+
+    public S3Location withCodec(final CompressionCodec codec)
+    {
+        setCodec(codec);
+        return this;
+    }
+
+    public S3Location withContentLength(final Long contentLength)
+    {
+        setContentLength(contentLength);
+        return this;
+    }
+
+    public S3Location withContentHash(final String contentHash)
+    {
+        setContentHash(contentHash);
+        return this;
+    }
+
+    public S3Location withKeyLayout(final S3KeyLayout keyLayout)
+    {
+        setKeyLayout(keyLayout);
+        return this;
+    }
 }
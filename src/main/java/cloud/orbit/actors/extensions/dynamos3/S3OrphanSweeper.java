@@ -0,0 +1,348 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+import cloud.orbit.exception.UncheckedException;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Finds S3 objects no DynamoDB item points to any more, e.g. left behind by a write whose outcome was unknown
+ * or by an actor the extension had forgotten about, and deletes them. The bucket is listed a page at a time and
+ * the owner of each object, recorded in its metadata when it was written, is looked up with bounded
+ * parallelism. Objects younger than the grace period may still be waiting for their pointer and are kept, as
+ * are objects without an owner recorded. Sweeps block, but every call they make waits for a permit and a
+ * token of its tier and is retried like any other call of the extension, so sweeping does not crowd out reads
+ * and writes.
+ */
+public class S3OrphanSweeper
+{
+    /**
+     * S3 user metadata key recording the table of the item an object belongs to.
+     */
+    public static final String METADATA_TABLE = "orbit-table";
+
+    /**
+     * S3 user metadata key recording the id, URL encoded, of the item an object belongs to.
+     */
+    public static final String METADATA_ITEM_ID = "orbit-item-id";
+
+    private final AmazonS3 s3;
+    private final DynamoDB dynamoDB;
+    private final ObjectMapper mapper;
+    private final ConcurrencyLimiter s3Limiter;
+    private final AdaptiveRetry s3Retry;
+    private final ConcurrencyLimiter dynamoLimiter;
+    private final AdaptiveRetry dynamoRetry;
+    private final Executor executor;
+    private final int parallelism;
+    private final long gracePeriodMillis;
+    private final int pageSize;
+
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder unowned = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param executor          looks up owners and deletes orphans, at most {@code parallelism} at a time
+     * @param gracePeriodMillis how old an object must be before it is considered
+     * @param pageSize          how many objects are listed per request
+     */
+    public S3OrphanSweeper(
+            final AmazonS3 s3,
+            final DynamoDB dynamoDB,
+            final ObjectMapper mapper,
+            final ConcurrencyLimiter s3Limiter,
+            final AdaptiveRetry s3Retry,
+            final ConcurrencyLimiter dynamoLimiter,
+            final AdaptiveRetry dynamoRetry,
+            final Executor executor,
+            final int parallelism,
+            final long gracePeriodMillis,
+            final int pageSize)
+    {
+        this.s3 = s3;
+        this.dynamoDB = dynamoDB;
+        this.mapper = mapper;
+        this.s3Limiter = s3Limiter;
+        this.s3Retry = s3Retry;
+        this.dynamoLimiter = dynamoLimiter;
+        this.dynamoRetry = dynamoRetry;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.gracePeriodMillis = gracePeriodMillis;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Records the owner of an object in the metadata it is written with.
+     */
+    public static void addOwner(final ObjectMetadata metadata, final String tableName, final String itemId)
+    {
+        metadata.addUserMetadata(METADATA_TABLE, tableName);
+        metadata.addUserMetadata(METADATA_ITEM_ID, encode(itemId));
+    }
+
+    /**
+     * Sweeps the objects in {@code bucketName} whose keys start with {@code prefix}, which may be {@code null}.
+     *
+     * @return the number of objects deleted
+     */
+    public long sweep(final String bucketName, final String prefix)
+    {
+        final long cutoff = System.currentTimeMillis() - gracePeriodMillis;
+        final Semaphore permits = new Semaphore(parallelism);
+        final LongAdder sweepDeleted = new LongAdder();
+
+        final ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(prefix)
+                .withMaxKeys(pageSize);
+        ListObjectsV2Result page;
+        do
+        {
+            page = call(s3Limiter, s3Retry, () -> s3.listObjectsV2(request));
+
+            final List<CompletableFuture<Void>> checks = new ArrayList<>(page.getObjectSummaries().size());
+            for(final S3ObjectSummary summary : page.getObjectSummaries())
+            {
+                scanned.increment();
+                if(summary.getLastModified() == null || summary.getLastModified().getTime() > cutoff)
+                {
+                    continue;
+                }
+
+                permits.acquireUninterruptibly();
+                checks.add(CompletableFuture.runAsync(() -> {
+                    try
+                    {
+                        if(sweepObject(bucketName, summary.getKey()))
+                        {
+                            sweepDeleted.increment();
+                        }
+                    }
+                    catch(RuntimeException e)
+                    {
+                        // Left for the next sweep
+                        failed.increment();
+                    }
+                    finally
+                    {
+                        permits.release();
+                    }
+                }, executor));
+            }
+            // Holds on to no more than a page of objects at a time
+            CompletableFuture.allOf(checks.toArray(new CompletableFuture[checks.size()])).join();
+
+            request.setContinuationToken(page.getNextContinuationToken());
+        }
+        while(page.isTruncated());
+
+        return sweepDeleted.sum();
+    }
+
+    private boolean sweepObject(final String bucketName, final String key)
+    {
+        final ObjectMetadata metadata;
+        try
+        {
+            metadata = call(s3Limiter, s3Retry, () -> s3.getObjectMetadata(bucketName, key));
+        }
+        catch(AmazonS3Exception e)
+        {
+            if(e.getStatusCode() == 404)
+            {
+                // Deleted since it was listed
+                return false;
+            }
+            throw e;
+        }
+
+        final String tableName = metadata.getUserMetaDataOf(METADATA_TABLE);
+        final String itemId = metadata.getUserMetaDataOf(METADATA_ITEM_ID);
+        if(tableName == null || itemId == null)
+        {
+            unowned.increment();
+            return false;
+        }
+
+        if(isReferenced(tableName, decode(itemId), bucketName, key))
+        {
+            return false;
+        }
+
+        call(s3Limiter, s3Retry, () -> {
+            s3.deleteObject(bucketName, key);
+            return null;
+        });
+        deleted.increment();
+        return true;
+    }
+
+    private boolean isReferenced(final String tableName, final String itemId, final String bucketName, final String key)
+    {
+        final Item item;
+        try
+        {
+            item = call(dynamoLimiter, dynamoRetry, () -> dynamoDB.getTable(tableName).getItem(new GetItemSpec()
+                    .withPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, itemId)
+                    .withProjectionExpression("#s3Location")
+                    .withNameMap(Collections.singletonMap("#s3Location", DynamoDBS3Utils.FIELD_NAME_S3_LOCATION))
+                    .withConsistentRead(true)));
+        }
+        catch(ResourceNotFoundException e)
+        {
+            // More likely misconfigured than gone, so nothing is deleted on its account
+            return true;
+        }
+
+        try
+        {
+            final S3Location s3Location = item != null ? DynamoDBS3Utils.readS3Location(item, mapper) : null;
+            return s3Location != null
+                    && bucketName.equals(s3Location.getBucketName())
+                    && key.equals(s3Location.getItemName());
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
+    }
+
+    /**
+     * Makes a blocking call within the limits of its tier, retrying transient failures, and rethrows what it
+     * finally failed with. Each attempt takes its own permit, so none is held while backing off.
+     */
+    private static <T> T call(final ConcurrencyLimiter limiter, final AdaptiveRetry retry, final Supplier<T> call)
+    {
+        try
+        {
+            return retry.execute(() -> limiter.submit(() -> {
+                try
+                {
+                    return CompletableFuture.completedFuture(call.get());
+                }
+                catch(RuntimeException e)
+                {
+                    final CompletableFuture<T> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                }
+            })).join();
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static String encode(final String value)
+    {
+        try
+        {
+            return URLEncoder.encode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new UncheckedException(e);
+        }
+    }
+
+    private static String decode(final String value)
+    {
+        try
+        {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new UncheckedException(e);
+        }
+    }
+
+    /**
+     * Number of objects listed, across all sweeps.
+     */
+    public long getScannedCount()
+    {
+        return scanned.sum();
+    }
+
+    /**
+     * Number of objects kept because they carry no owner, e.g. written before owners were recorded.
+     */
+    public long getUnownedCount()
+    {
+        return unowned.sum();
+    }
+
+    public long getDeletedCount()
+    {
+        return deleted.sum();
+    }
+
+    /**
+     * Number of objects that could not be checked or deleted.
+     */
+    public long getFailedCount()
+    {
+        return failed.sum();
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import cloud.orbit.exception.UncheckedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Local cache of S3 payloads, keyed by the hash of their content. Since a hash always names the same bytes,
+ * entries never go stale, whichever node wrote the object. Payloads evicted from the heap can spill to files
+ * in a local directory, which are memory-mapped when read and survive restarts. Spilled payloads are hashed
+ * again whenever they are read, and dropped if they no longer match their key.
+ */
+public class S3PayloadCache
+{
+    private static final String HASH_PATTERN = "[0-9a-f]{64}";
+
+    private final Cache<String, byte[]> heap;
+    private final Cache<String, Integer> disk;
+    private final Path directory;
+
+    public S3PayloadCache(final long heapMaximumBytes)
+    {
+        this(heapMaximumBytes, null, 0);
+    }
+
+    public S3PayloadCache(final long heapMaximumBytes, final Path directory, final long diskMaximumBytes)
+    {
+        this.directory = directory;
+
+        if(directory != null)
+        {
+            this.disk = Caffeine.newBuilder()
+                    .maximumWeight(diskMaximumBytes)
+                    .weigher((String contentHash, Integer size) -> size)
+                    .removalListener((String contentHash, Integer size, RemovalCause cause) -> {
+                        if(cause != RemovalCause.REPLACED)
+                        {
+                            deleteFile(contentHash);
+                        }
+                    })
+                    .recordStats()
+                    .build();
+            loadDirectory();
+        }
+        else
+        {
+            this.disk = null;
+        }
+
+        this.heap = Caffeine.newBuilder()
+                .maximumWeight(heapMaximumBytes)
+                .weigher((String contentHash, byte[] payload) -> payload.length)
+                .removalListener((String contentHash, byte[] payload, RemovalCause cause) -> {
+                    if(cause == RemovalCause.SIZE && this.disk != null)
+                    {
+                        spill(contentHash, payload);
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Opens the cached payload with the given content hash, or returns {@code null} if it is not cached.
+     */
+    public InputStream get(final String contentHash)
+    {
+        final byte[] payload = heap.getIfPresent(contentHash);
+        if(payload != null)
+        {
+            return new ByteArrayInputStream(payload);
+        }
+
+        if(disk != null && disk.getIfPresent(contentHash) != null)
+        {
+            try(FileChannel channel = FileChannel.open(directory.resolve(contentHash), StandardOpenOption.READ))
+            {
+                // The mapping stays valid after the channel is closed, and even if the file is evicted meanwhile
+                final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                // Files can be damaged or replaced outside of the cache, which the heap tier need not fear
+                final MessageDigest digest = DynamoDBS3Utils.newContentDigest();
+                digest.update(mapped.duplicate());
+                if(!DynamoDBS3Utils.toHex(digest.digest()).equals(contentHash))
+                {
+                    disk.invalidate(contentHash);
+                    deleteFile(contentHash);
+                    return null;
+                }
+                return new ByteBufferInputStream(mapped);
+            }
+            catch(NoSuchFileException e)
+            {
+                disk.invalidate(contentHash);
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedException(e);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Caches a payload, which must hash to {@code contentHash}.
+     */
+    public void put(final String contentHash, final byte[] payload)
+    {
+        heap.put(contentHash, payload);
+    }
+
+    public CacheStats heapStats()
+    {
+        return heap.stats();
+    }
+
+    /**
+     * Statistics of the disk tier, or {@code null} if there is none.
+     */
+    public CacheStats diskStats()
+    {
+        return disk != null ? disk.stats() : null;
+    }
+
+    private void spill(final String contentHash, final byte[] payload)
+    {
+        if(disk.getIfPresent(contentHash) != null)
+        {
+            return;
+        }
+
+        try
+        {
+            // Written under a temporary name first, so a reader never maps a partial file
+            final Path temporary = Files.createTempFile(directory, contentHash, ".tmp");
+            Files.write(temporary, payload);
+            Files.move(temporary, directory.resolve(contentHash),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            disk.put(contentHash, payload.length);
+        }
+        catch(IOException e)
+        {
+            // Losing a spilled payload only costs an S3 read later
+        }
+    }
+
+    private void deleteFile(final String contentHash)
+    {
+        try
+        {
+            Files.deleteIfExists(directory.resolve(contentHash));
+        }
+        catch(IOException e)
+        {
+            // Left for the next start to pick up again
+        }
+    }
+
+    private void loadDirectory()
+    {
+        try
+        {
+            Files.createDirectories(directory);
+            try(DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+            {
+                for(final Path file : files)
+                {
+                    final String name = file.getFileName().toString();
+                    if(name.matches(HASH_PATTERN))
+                    {
+                        disk.put(name, (int) Math.min(Files.size(file), Integer.MAX_VALUE));
+                    }
+                    else if(name.endsWith(".tmp"))
+                    {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedException(e);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+        {
+            if(len == 0)
+            {
+                return 0;
+            }
+            if(!buffer.hasRemaining())
+            {
+                return -1;
+            }
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
+    }
+}
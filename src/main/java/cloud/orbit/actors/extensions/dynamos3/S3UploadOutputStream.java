@@ -0,0 +1,256 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Streams data into an S3 object. Data is buffered one part at a time: objects that fit in a single part are
+ * written with one PUT when the stream is closed, larger ones with a multipart upload that is completed on
+ * close. Given an executor, up to {@code parallelism} parts are uploaded concurrently while writing continues,
+ * each holding its own buffer. Nothing is visible in S3 until the stream is closed successfully.
+ */
+public class S3UploadOutputStream extends OutputStream
+{
+    /**
+     * Smallest part size S3 accepts for all but the last part of a multipart upload.
+     */
+    public static final int MINIMUM_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 s3Client;
+    private final String bucketName;
+    private final String key;
+    private final ObjectMetadata metadata;
+    private final int partSize;
+    private final Executor executor;
+    private final Semaphore partsInFlight;
+
+    private byte[] buffer;
+    private int count;
+    private long size;
+    private String uploadId;
+    private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+    private boolean closed;
+
+    public S3UploadOutputStream(
+            final AmazonS3 s3Client,
+            final String bucketName,
+            final String key,
+            final ObjectMetadata metadata,
+            final int partSize)
+    {
+        this(s3Client, bucketName, key, metadata, partSize, null, 1);
+    }
+
+    public S3UploadOutputStream(
+            final AmazonS3 s3Client,
+            final String bucketName,
+            final String key,
+            final ObjectMetadata metadata,
+            final int partSize,
+            final Executor executor,
+            final int parallelism)
+    {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.metadata = metadata;
+        this.partSize = Math.max(partSize, MINIMUM_PART_SIZE);
+        this.executor = parallelism > 1 ? executor : null;
+        this.partsInFlight = new Semaphore(Math.max(1, parallelism));
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        write(new byte[]{ (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed");
+        }
+
+        while (len > 0)
+        {
+            if (buffer == null)
+            {
+                buffer = new byte[partSize];
+            }
+
+            final int chunk = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, chunk);
+            count += chunk;
+            size += chunk;
+            off += chunk;
+            len -= chunk;
+
+            if (count == buffer.length)
+            {
+                uploadPart();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+
+        try
+        {
+            if (uploadId == null)
+            {
+                metadata.setContentLength(count);
+                s3Client.putObject(bucketName, key, new ByteArrayInputStream(buffer != null ? buffer : new byte[0], 0, count), metadata);
+            }
+            else
+            {
+                if (count > 0)
+                {
+                    uploadPart();
+                }
+
+                final List<PartETag> partETags = new ArrayList<>(parts.size());
+                for (final CompletableFuture<PartETag> part : parts)
+                {
+                    partETags.add(part.join());
+                }
+                s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+            }
+        }
+        catch (CompletionException e)
+        {
+            abort();
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        catch (RuntimeException e)
+        {
+            abort();
+            throw e;
+        }
+        finally
+        {
+            buffer = null;
+        }
+    }
+
+    /**
+     * Discards the upload. Parts already sent to S3 are released, and nothing becomes visible.
+     */
+    public void abort()
+    {
+        closed = true;
+        buffer = null;
+
+        if (uploadId != null)
+        {
+            // Parts still uploading would otherwise outlive the abort and linger in the bucket
+            for (final CompletableFuture<PartETag> part : parts)
+            {
+                part.handle((r, e) -> null).join();
+            }
+
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            uploadId = null;
+        }
+    }
+
+    /**
+     * Total number of bytes written to the stream.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    private void uploadPart() throws IOException
+    {
+        if (uploadId == null)
+        {
+            uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+        }
+
+        final UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucketName)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(parts.size() + 1)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, count))
+                .withPartSize(count);
+
+        if (executor == null)
+        {
+            parts.add(CompletableFuture.completedFuture(s3Client.uploadPart(request).getPartETag()));
+            count = 0;
+            return;
+        }
+
+        // Blocks the writer while too many parts are in flight, which bounds the memory held by part buffers
+        try
+        {
+            partsInFlight.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        parts.add(CompletableFuture
+                .supplyAsync(() -> s3Client.uploadPart(request).getPartETag(), executor)
+                .whenComplete((r, e) -> partsInFlight.release()));
+        buffer = null;
+        count = 0;
+    }
+}
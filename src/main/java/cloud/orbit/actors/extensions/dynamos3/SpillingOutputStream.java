@@ -0,0 +1,174 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Buffers written data in memory up to a threshold. Past the threshold, the buffered data and everything
+ * written afterwards is passed to an overflow stream opened on demand, so memory use stays bounded however
+ * much is written. Optionally hashes everything written on the way, so the data can be told apart from what was
+ * written before without keeping it.
+ */
+public class SpillingOutputStream extends OutputStream
+{
+    public interface OverflowFactory
+    {
+        OutputStream open() throws IOException;
+    }
+
+    private final int threshold;
+    private final OverflowFactory overflowFactory;
+    private final MessageDigest digest;
+
+    private byte[] buffer = new byte[256];
+    private int count;
+    private long size;
+    private OutputStream overflow;
+    private byte[] hash;
+
+    public SpillingOutputStream(final int threshold, final OverflowFactory overflowFactory)
+    {
+        this(threshold, overflowFactory, null);
+    }
+
+    /**
+     * @param digest hashes the data written, see {@link #digest()}
+     */
+    public SpillingOutputStream(final int threshold, final OverflowFactory overflowFactory, final MessageDigest digest)
+    {
+        this.threshold = threshold;
+        this.overflowFactory = overflowFactory;
+        this.digest = digest;
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        write(new byte[]{ (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (digest != null)
+        {
+            digest.update(b, off, len);
+        }
+
+        if (overflow == null && count + len > threshold)
+        {
+            overflow = overflowFactory.open();
+            overflow.write(buffer, 0, count);
+            buffer = null;
+            count = 0;
+        }
+
+        if (overflow != null)
+        {
+            overflow.write(b, off, len);
+        }
+        else
+        {
+            if (count + len > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, Math.min(threshold, Math.max(buffer.length * 2, count + len)));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        size += len;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        if (overflow != null)
+        {
+            overflow.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (overflow != null)
+        {
+            overflow.close();
+        }
+    }
+
+    /**
+     * Whether more than the threshold was written and the data went to the overflow stream.
+     */
+    public boolean isSpilled()
+    {
+        return overflow != null;
+    }
+
+    /**
+     * Total number of bytes written.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Hash of the data written so far, which completes the digest: anything written afterwards is not reflected in it.
+     */
+    public byte[] digest()
+    {
+        if (digest == null)
+        {
+            throw new IllegalStateException("No digest was given");
+        }
+        if (hash == null)
+        {
+            hash = digest.digest();
+        }
+        return hash.clone();
+    }
+
+    /**
+     * The data written, only available when it did not spill.
+     */
+    public byte[] toByteArray()
+    {
+        if (overflow != null)
+        {
+            throw new IllegalStateException("Data was spilled to the overflow stream");
+        }
+        return Arrays.copyOf(buffer, count);
+    }
+}
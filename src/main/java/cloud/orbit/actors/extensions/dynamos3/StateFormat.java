@@ -0,0 +1,104 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Encoding states are serialized to. The format is recorded with the state, so states written in different
+ * formats can be read side by side, and a type moves to a new format as its states are written again.
+ */
+public enum StateFormat
+{
+    /**
+     * JSON text, stored inline as a DynamoDB document that can be inspected and queried.
+     */
+    JSON("application/json")
+            {
+                @Override
+                public JsonFactory createFactory()
+                {
+                    return new JsonFactory();
+                }
+            },
+
+    /**
+     * Jackson's binary JSON, which refers back to repeated property names and values rather than repeating them.
+     */
+    SMILE("application/x-jackson-smile")
+            {
+                @Override
+                public JsonFactory createFactory()
+                {
+                    return new SmileFactory();
+                }
+            },
+
+    /**
+     * Concise Binary Object Representation, RFC 7049.
+     */
+    CBOR("application/cbor")
+            {
+                @Override
+                public JsonFactory createFactory()
+                {
+                    return new CBORFactory();
+                }
+            };
+
+    private final String contentType;
+
+    StateFormat(final String contentType)
+    {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Creates the factory of the parsers and generators for this format.
+     */
+    public abstract JsonFactory createFactory();
+
+    /**
+     * The MIME type of states in this format, as recorded on S3 objects.
+     */
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    /**
+     * Whether states in this format are stored inline as binary rather than as a DynamoDB document.
+     */
+    public boolean isBinary()
+    {
+        return this != JSON;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import cloud.orbit.actors.extensions.json.ActorReferenceModule;
+import cloud.orbit.actors.runtime.DefaultDescriptorFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Readers and writers of states, one mapper per {@link StateFormat}. Readers and writers are built once per
+ * state class, with their root (de)serializer resolved up front, rather than looked up again on every call.
+ * Instances are thread safe and meant to be shared by the extensions storing the same states.
+ */
+public class StateSerializers
+{
+    private final Map<StateFormat, ObjectMapper> mappers = new EnumMap<>(StateFormat.class);
+    private final Map<StateFormat, ConcurrentMap<Class<?>, ObjectReader>> readers = new EnumMap<>(StateFormat.class);
+    private final Map<StateFormat, ConcurrentMap<Class<?>, ObjectWriter>> writers = new EnumMap<>(StateFormat.class);
+
+    public StateSerializers()
+    {
+        for (final StateFormat format : StateFormat.values())
+        {
+            mappers.put(format, configureMapper(new ObjectMapper(format.createFactory())));
+            readers.put(format, new ConcurrentHashMap<>());
+            writers.put(format, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Configures a mapper the way states are (de)serialized: by field, leaving out nulls and ignoring
+     * properties the state class no longer has.
+     */
+    public static ObjectMapper configureMapper(final ObjectMapper mapper)
+    {
+        mapper.registerModule(new ActorReferenceModule(DefaultDescriptorFactory.get()));
+
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        mapper.setVisibility(mapper.getSerializationConfig().getDefaultVisibilityChecker()
+                .withFieldVisibility(JsonAutoDetect.Visibility.ANY)
+                .withGetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withIsGetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withSetterVisibility(JsonAutoDetect.Visibility.NONE)
+                .withCreatorVisibility(JsonAutoDetect.Visibility.NONE));
+
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        return mapper;
+    }
+
+    public ObjectMapper getMapper(final StateFormat format)
+    {
+        return mappers.get(format);
+    }
+
+    /**
+     * Returns a reader of {@code format} that populates {@code state} in place. Readers leave the source open,
+     * so the caller can read an S3 object to its end before closing it.
+     */
+    public ObjectReader readerForUpdating(final StateFormat format, final Object state)
+    {
+        return readers.get(format)
+                .computeIfAbsent(state.getClass(), k -> mappers.get(format).readerFor(k).without(JsonParser.Feature.AUTO_CLOSE_SOURCE))
+                .withValueToUpdate(state);
+    }
+
+    /**
+     * Returns the writer of states of {@code stateClass} in {@code format}. Writers leave the target open, so
+     * the extension decides when a serialized state is complete, e.g. to finish an S3 upload.
+     */
+    public ObjectWriter writerFor(final StateFormat format, final Class<?> stateClass)
+    {
+        return writers.get(format)
+                .computeIfAbsent(stateClass, k -> mappers.get(format).writerFor(k).without(JsonGenerator.Feature.AUTO_CLOSE_TARGET));
+    }
+}
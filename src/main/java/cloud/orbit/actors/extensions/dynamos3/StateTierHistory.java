@@ -0,0 +1,277 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import cloud.orbit.actors.runtime.RemoteReference;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which tier the state of each actor was last stored in, and how large it was, so writes can be
+ * routed without first being rejected by DynamoDB. Per actor entries are bounded and evicted least recently
+ * used first; per actor type statistics are kept for as long as the extension runs.
+ */
+public class StateTierHistory
+{
+    public static final int UNKNOWN_SIZE = -1;
+
+    /**
+     * Number of inline writes of a type after which a rejection is forgotten, so a limit learnt from a few
+     * unusual states does not send every state of the type that comes close to it to S3 forever.
+     */
+    public static final int REJECTION_DECAY_WRITES = 1000;
+
+    public static class Placement
+    {
+        private final StorageTier tier;
+        private final int size;
+        private final String stateHash;
+        private final S3Location s3Location;
+        private final ChunkManifest chunkManifest;
+
+        public Placement(final StorageTier tier, final int size)
+        {
+            this(tier, size, null, null, null);
+        }
+
+        public Placement(final StorageTier tier, final int size, final String stateHash)
+        {
+            this(tier, size, stateHash, null, null);
+        }
+
+        public Placement(
+                final StorageTier tier,
+                final int size,
+                final String stateHash,
+                final S3Location s3Location,
+                final ChunkManifest chunkManifest)
+        {
+            this.tier = tier;
+            this.size = size;
+            this.stateHash = stateHash;
+            this.s3Location = s3Location;
+            this.chunkManifest = chunkManifest;
+        }
+
+        public StorageTier getTier()
+        {
+            return tier;
+        }
+
+        public int getSize()
+        {
+            return size;
+        }
+
+        /**
+         * Hash of the serialized state last persisted, {@code null} if unknown.
+         */
+        public String getStateHash()
+        {
+            return stateHash;
+        }
+
+        /**
+         * The object the state is stored in, {@code null} unless it is {@link StorageTier#S3}.
+         */
+        public S3Location getS3Location()
+        {
+            return s3Location;
+        }
+
+        /**
+         * The chunks the state is stored in, {@code null} unless it is {@link StorageTier#DYNAMODB_CHUNKED}.
+         */
+        public ChunkManifest getChunkManifest()
+        {
+            return chunkManifest;
+        }
+    }
+
+    private static class TypeStatistics
+    {
+        private final AtomicLong dynamoWrites = new AtomicLong();
+        private final AtomicLong largeWrites = new AtomicLong();
+        private final AtomicInteger smallestRejectedSize = new AtomicInteger(Integer.MAX_VALUE);
+        private final AtomicInteger dynamoWritesSinceRejection = new AtomicInteger();
+
+        private boolean isHabituallyLarge()
+        {
+            return largeWrites.get() > dynamoWrites.get();
+        }
+    }
+
+    private final Cache<RemoteReference<?>, Placement> placements;
+    private final ConcurrentMap<Class<?>, TypeStatistics> typeStatistics = new ConcurrentHashMap<>();
+    private final double hysteresis;
+
+    /**
+     * @param maximumSize maximum number of actors to remember placements for
+     * @param hysteresis  fraction of the threshold a state stored in S3 must shrink below before it is moved
+     *                    back to DynamoDB
+     */
+    public StateTierHistory(final long maximumSize, final double hysteresis)
+    {
+        this.placements = Caffeine.newBuilder().maximumSize(maximumSize).build();
+        this.hysteresis = hysteresis;
+    }
+
+    /**
+     * Picks the tier a state of {@code estimatedSize} bytes should be written to.
+     */
+    public StorageTier chooseTier(final RemoteReference<?> reference, final int estimatedSize, final int threshold)
+    {
+        final TypeStatistics statistics = getTypeStatistics(reference);
+
+        // DynamoDB rejecting an item tells us the estimate runs low for this type
+        final int effectiveThreshold = Math.min(threshold, statistics.smallestRejectedSize.get() - 1);
+        final int lowWatermark = (int) (effectiveThreshold * (1.0 - hysteresis));
+
+        final Placement placement = placements.getIfPresent(reference);
+        final boolean wasLarge = placement != null
+                ? placement.getTier() != StorageTier.DYNAMODB
+                : statistics.isHabituallyLarge();
+
+        if (wasLarge)
+        {
+            return estimatedSize < lowWatermark ? StorageTier.DYNAMODB : StorageTier.S3;
+        }
+
+        return estimatedSize <= effectiveThreshold ? StorageTier.DYNAMODB : StorageTier.S3;
+    }
+
+    /**
+     * Records that the state of {@code reference} was written to {@code tier}.
+     */
+    public void recordWrite(final RemoteReference<?> reference, final StorageTier tier, final int size)
+    {
+        recordWrite(reference, tier, size, null);
+    }
+
+    /**
+     * Records that the state of {@code reference}, serialized to a form hashing to {@code stateHash}, was
+     * written to {@code tier}.
+     */
+    public void recordWrite(final RemoteReference<?> reference, final StorageTier tier, final int size, final String stateHash)
+    {
+        recordWrite(reference, tier, size, stateHash, null, null);
+    }
+
+    /**
+     * Records a write, along with where outside of the actor's item the state was stored, so it can be
+     * cleaned up once the state moves on.
+     */
+    public void recordWrite(
+            final RemoteReference<?> reference,
+            final StorageTier tier,
+            final int size,
+            final String stateHash,
+            final S3Location s3Location,
+            final ChunkManifest chunkManifest)
+    {
+        final TypeStatistics statistics = getTypeStatistics(reference);
+        if (tier == StorageTier.DYNAMODB)
+        {
+            statistics.dynamoWrites.incrementAndGet();
+            if (statistics.dynamoWritesSinceRejection.incrementAndGet() >= REJECTION_DECAY_WRITES)
+            {
+                statistics.dynamoWritesSinceRejection.set(0);
+                statistics.smallestRejectedSize.set(Integer.MAX_VALUE);
+            }
+        }
+        else
+        {
+            statistics.largeWrites.incrementAndGet();
+        }
+
+        placements.put(reference, new Placement(tier, size, stateHash, s3Location, chunkManifest));
+    }
+
+    /**
+     * Records that the state of {@code reference} was read from {@code tier}, without counting towards the
+     * type statistics.
+     */
+    public void recordRead(final RemoteReference<?> reference, final StorageTier tier)
+    {
+        recordRead(reference, tier, null);
+    }
+
+    public void recordRead(final RemoteReference<?> reference, final StorageTier tier, final String stateHash)
+    {
+        recordRead(reference, tier, stateHash, null, null);
+    }
+
+    public void recordRead(
+            final RemoteReference<?> reference,
+            final StorageTier tier,
+            final String stateHash,
+            final S3Location s3Location,
+            final ChunkManifest chunkManifest)
+    {
+        placements.put(reference, new Placement(tier, UNKNOWN_SIZE, stateHash, s3Location, chunkManifest));
+    }
+
+    /**
+     * Records that DynamoDB rejected an item estimated at {@code estimatedSize} bytes as too large. States of
+     * the same type are kept below that size until {@value #REJECTION_DECAY_WRITES} of them have been written
+     * inline since.
+     */
+    public void recordRejected(final RemoteReference<?> reference, final int estimatedSize)
+    {
+        final TypeStatistics statistics = getTypeStatistics(reference);
+        statistics.dynamoWritesSinceRejection.set(0);
+        statistics.smallestRejectedSize.accumulateAndGet(estimatedSize, Math::min);
+    }
+
+    public void forget(final RemoteReference<?> reference)
+    {
+        placements.invalidate(reference);
+    }
+
+    public Placement getPlacement(final RemoteReference<?> reference)
+    {
+        return placements.getIfPresent(reference);
+    }
+
+    public long size()
+    {
+        return placements.estimatedSize();
+    }
+
+    private TypeStatistics getTypeStatistics(final RemoteReference<?> reference)
+    {
+        return typeStatistics.computeIfAbsent(RemoteReference.getInterfaceClass(reference), k -> new TypeStatistics());
+    }
+}
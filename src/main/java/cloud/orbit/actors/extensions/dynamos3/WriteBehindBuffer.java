@@ -0,0 +1,344 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import cloud.orbit.actors.runtime.RemoteReference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds state writes back for a window, so that repeated writes of the same actor are coalesced into one,
+ * the last one written. Flushes of an actor never overlap, so they reach storage in order. A write that keeps
+ * failing to flush is eventually dropped, and its failure reported to the next caller writing or flushing.
+ */
+public class WriteBehindBuffer
+{
+    @FunctionalInterface
+    public interface Writer
+    {
+        CompletableFuture<Void> write(RemoteReference<?> reference, Object snapshot, Class<?> stateClass);
+    }
+
+    private static class PendingWrite
+    {
+        private final Object snapshot;
+        private final Class<?> stateClass;
+        private final long dirtySince;
+        private int attempts;
+        // Set once the actor's state was discarded while this write was being flushed
+        private boolean discarded;
+
+        private PendingWrite(final Object snapshot, final Class<?> stateClass, final long dirtySince)
+        {
+            this.snapshot = snapshot;
+            this.stateClass = stateClass;
+            this.dirtySince = dirtySince;
+        }
+    }
+
+    private final ConcurrentMap<RemoteReference<?>, PendingWrite> dirty = new ConcurrentHashMap<>();
+    private final ConcurrentMap<RemoteReference<?>, CompletableFuture<Void>> flushes = new ConcurrentHashMap<>();
+    // Writes being flushed, taken, discarded and requeued under the lock so a discard cannot be missed
+    private final ConcurrentMap<RemoteReference<?>, PendingWrite> writing = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    private final ConcurrentMap<RemoteReference<?>, Throwable> dropped = new ConcurrentHashMap<>();
+    private final WriteBehindStatistics statistics = new WriteBehindStatistics();
+
+    private final Writer writer;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final long windowMillis;
+    private final int maximumDirty;
+    private final int maximumAttempts;
+
+    /**
+     * @param writer       persists a snapshot
+     * @param scheduler    times the delayed flushes
+     * @param executor     runs the delayed flushes, which serialize states and may wait for permits, so that
+     *                     they never hold up the scheduler
+     * @param windowMillis how long a write is held back for further writes to replace it
+     * @param maximumDirty number of actors that may have pending writes; beyond it writes are flushed at once
+     * @param maximumAttempts number of times a write is flushed before it is dropped
+     */
+    public WriteBehindBuffer(
+            final Writer writer,
+            final ScheduledExecutorService scheduler,
+            final Executor executor,
+            final long windowMillis,
+            final int maximumDirty,
+            final int maximumAttempts)
+    {
+        this.writer = writer;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+        this.maximumDirty = maximumDirty;
+        this.maximumAttempts = maximumAttempts;
+    }
+
+    /**
+     * Queues a snapshot of a state. The returned future completes once the write is accepted, which is
+     * immediately unless the buffer is full, in which case it completes once the snapshot is persisted. It
+     * fails if an earlier write of the actor was dropped, though the snapshot, which supersedes it, is queued.
+     */
+    public CompletableFuture<Void> write(final RemoteReference<?> reference, final Object snapshot, final Class<?> stateClass)
+    {
+        final boolean full;
+        final PendingWrite replaced;
+        synchronized(lock)
+        {
+            // Under the lock, so a write racing a discard either precedes it or is not discarded at all
+            full = dirty.size() >= maximumDirty;
+            replaced = dirty.put(reference, new PendingWrite(snapshot, stateClass, System.nanoTime()));
+        }
+        statistics.recordWrite(replaced != null);
+
+        CompletableFuture<Void> accepted = CompletableFuture.completedFuture(null);
+        if(replaced == null)
+        {
+            if(full)
+            {
+                accepted = flush(reference);
+            }
+            else
+            {
+                schedule(reference);
+            }
+        }
+
+        final Throwable failure = dropped.remove(reference);
+        return failure == null ? accepted : accepted.handle((r, e) -> {
+            throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+        });
+    }
+
+    /**
+     * Persists the pending write of an actor, if any, once any flush already in progress has completed.
+     */
+    public CompletableFuture<Void> flush(final RemoteReference<?> reference)
+    {
+        final CompletableFuture<Void> flush = flushes.compute(reference, (k, previous) ->
+                (previous != null ? previous.handle((r, e) -> (Void) null) : CompletableFuture.<Void>completedFuture(null))
+                        .thenCompose(v -> writePending(reference)));
+
+        flush.whenComplete((r, e) -> flushes.remove(reference, flush));
+        return flush;
+    }
+
+    /**
+     * Persists all pending writes. The returned future fails if any of them failed, or if a write was dropped
+     * since the last caller was told.
+     */
+    public CompletableFuture<Void> flushAll()
+    {
+        final List<CompletableFuture<Void>> all = new ArrayList<>();
+        for(final RemoteReference<?> reference : dirty.keySet())
+        {
+            all.add(flush(reference));
+        }
+        all.addAll(flushes.values());
+        return CompletableFuture.allOf(all.toArray(new CompletableFuture[all.size()])).thenRun(this::reportDropped);
+    }
+
+    /**
+     * Persists all pending writes, flushing failed ones again at once until nothing is pending or they have run
+     * out of attempts, e.g. before shutting down when there is no later window to retry in. The returned future
+     * fails if any write was dropped, which {@link WriteBehindStatistics#getDroppedWriteCount()} also counts.
+     */
+    public CompletableFuture<Void> drain()
+    {
+        final List<CompletableFuture<Void>> all = new ArrayList<>();
+        for(final RemoteReference<?> reference : dirty.keySet())
+        {
+            all.add(flush(reference));
+        }
+        all.addAll(flushes.values());
+        return CompletableFuture.allOf(all.toArray(new CompletableFuture[all.size()]))
+                .handle((r, e) -> (Void) null)
+                .thenCompose(v -> {
+                    if(!dirty.isEmpty() || !flushes.isEmpty())
+                    {
+                        // Failed writes were requeued
+                        return drain();
+                    }
+                    reportDropped();
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
+    /**
+     * Drops the pending write of an actor. A flush in progress is not retried should it fail, and the
+     * returned future completes once it is over.
+     */
+    public CompletableFuture<Void> discard(final RemoteReference<?> reference)
+    {
+        synchronized(lock)
+        {
+            dirty.remove(reference);
+            dropped.remove(reference);
+            final PendingWrite inFlight = writing.get(reference);
+            if(inFlight != null)
+            {
+                inFlight.discarded = true;
+            }
+        }
+        final CompletableFuture<Void> flush = flushes.get(reference);
+        return flush != null ? flush.handle((r, e) -> (Void) null) : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Whether the actor has a write that has not reached storage yet.
+     */
+    public boolean isPending(final RemoteReference<?> reference)
+    {
+        return dirty.containsKey(reference) || flushes.containsKey(reference);
+    }
+
+    public int getDirtyCount()
+    {
+        return dirty.size();
+    }
+
+    public WriteBehindStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Throws the failures of the writes dropped since the last caller was told, if any.
+     */
+    private void reportDropped()
+    {
+        CompletionException failure = null;
+        for(final RemoteReference<?> reference : dropped.keySet())
+        {
+            final Throwable error = dropped.remove(reference);
+            if(error == null)
+            {
+                continue;
+            }
+            if(failure == null)
+            {
+                failure = error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            else
+            {
+                failure.addSuppressed(error);
+            }
+        }
+        if(failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    private void schedule(final RemoteReference<?> reference)
+    {
+        scheduler.schedule(() -> executor.execute(() -> flush(reference)), windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private CompletableFuture<Void> writePending(final RemoteReference<?> reference)
+    {
+        final PendingWrite pending;
+        synchronized(lock)
+        {
+            pending = dirty.remove(reference);
+            if(pending == null)
+            {
+                return CompletableFuture.completedFuture(null);
+            }
+            writing.put(reference, pending);
+        }
+
+        final long start = System.nanoTime();
+        pending.attempts++;
+        final CompletableFuture<Void> write;
+        try
+        {
+            write = writer.write(reference, pending.snapshot, pending.stateClass);
+        }
+        catch(RuntimeException e)
+        {
+            requeue(reference, pending, e);
+            throw e;
+        }
+
+        return write.whenComplete((r, e) -> {
+            if(e != null)
+            {
+                requeue(reference, pending, e);
+            }
+            else
+            {
+                writing.remove(reference, pending);
+                final long end = System.nanoTime();
+                statistics.recordFlush(end - start, end - pending.dirtySince);
+            }
+        });
+    }
+
+    private void requeue(final RemoteReference<?> reference, final PendingWrite pending, final Throwable error)
+    {
+        statistics.recordFailedFlush();
+
+        synchronized(lock)
+        {
+            writing.remove(reference, pending);
+            if(pending.discarded)
+            {
+                return;
+            }
+            if(pending.attempts >= maximumAttempts)
+            {
+                statistics.recordDroppedWrite();
+                // Unless a newer write supersedes it, in which case that one is persisted instead
+                if(!dirty.containsKey(reference))
+                {
+                    dropped.put(reference, error);
+                }
+                return;
+            }
+
+            // Retried in the next window, unless a newer write has replaced it meanwhile
+            if(dirty.putIfAbsent(reference, pending) != null || scheduler.isShutdown())
+            {
+                return;
+            }
+        }
+        schedule(reference);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how a {@link WriteBehindBuffer} has been flushing.
+ */
+public class WriteBehindStatistics
+{
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder coalescedWrites = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder failedFlushes = new LongAdder();
+    private final LongAdder droppedWrites = new LongAdder();
+    private final LongAdder totalFlushNanos = new LongAdder();
+    private final AtomicLong maximumFlushNanos = new AtomicLong();
+    private final AtomicLong maximumDirtyNanos = new AtomicLong();
+
+    void recordWrite(final boolean coalesced)
+    {
+        writes.increment();
+        if(coalesced)
+        {
+            coalescedWrites.increment();
+        }
+    }
+
+    void recordFlush(final long flushNanos, final long dirtyNanos)
+    {
+        flushes.increment();
+        totalFlushNanos.add(flushNanos);
+        maximumFlushNanos.accumulateAndGet(flushNanos, Math::max);
+        maximumDirtyNanos.accumulateAndGet(dirtyNanos, Math::max);
+    }
+
+    void recordFailedFlush()
+    {
+        failedFlushes.increment();
+    }
+
+    void recordDroppedWrite()
+    {
+        droppedWrites.increment();
+    }
+
+    /**
+     * Number of writes accepted, including those that replaced a pending write.
+     */
+    public long getWriteCount()
+    {
+        return writes.sum();
+    }
+
+    /**
+     * Number of writes that replaced a pending write of the same actor, saving a round trip each.
+     */
+    public long getCoalescedWriteCount()
+    {
+        return coalescedWrites.sum();
+    }
+
+    public long getFlushCount()
+    {
+        return flushes.sum();
+    }
+
+    public long getFailedFlushCount()
+    {
+        return failedFlushes.sum();
+    }
+
+    /**
+     * Number of writes given up on after failing to flush too many times.
+     */
+    public long getDroppedWriteCount()
+    {
+        return droppedWrites.sum();
+    }
+
+    public double getAverageFlushLatencyMillis()
+    {
+        final long count = flushes.sum();
+        return count == 0 ? 0 : (double) totalFlushNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public long getMaximumFlushLatencyMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maximumFlushNanos.get());
+    }
+
+    /**
+     * Longest time a state has waited between being written and being persisted.
+     */
+    public long getMaximumDirtyMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maximumDirtyNanos.get());
+    }
+}
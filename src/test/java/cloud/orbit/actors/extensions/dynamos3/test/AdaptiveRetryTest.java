@@ -0,0 +1,188 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+
+import cloud.orbit.actors.extensions.dynamos3.AdaptiveRetry;
+import cloud.orbit.actors.extensions.dynamos3.AdaptiveThrottle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveRetryTest
+{
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testRetriesThrottlingAndSlowsDown() throws Exception
+    {
+        final AdaptiveThrottle throttle = new AdaptiveThrottle(1000, scheduler, Runnable::run);
+        final AdaptiveRetry retry = new AdaptiveRetry(throttle, scheduler, Runnable::run, 5, 1, 10);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final String result = retry.execute(() -> attempts.incrementAndGet() < 3
+                ? failed(serviceException("ProvisionedThroughputExceededException", 400))
+                : CompletableFuture.completedFuture("written")).get(5, TimeUnit.SECONDS);
+
+        assertEquals("written", result);
+        assertEquals(3, attempts.get());
+        assertEquals(2, retry.getRetryCount());
+        assertEquals(2, throttle.getThrottledCount());
+        // Both throttles came back within a second, so the rate was only halved once
+        assertTrue(throttle.getRate() < 600);
+        assertTrue(throttle.getRate() >= 500);
+    }
+
+    @Test
+    public void testDoesNotRetryClientErrors() throws Exception
+    {
+        final AdaptiveRetry retry = new AdaptiveRetry(
+                new AdaptiveThrottle(1000, scheduler, Runnable::run), scheduler, Runnable::run, 5, 1, 10);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try
+        {
+            retry.execute(() -> {
+                attempts.incrementAndGet();
+                return failed(serviceException("ValidationException", 400));
+            }).get(5, TimeUnit.SECONDS);
+            fail();
+        }
+        catch(ExecutionException e)
+        {
+            assertEquals("ValidationException", ((AmazonServiceException) e.getCause()).getErrorCode());
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testGivesUpAfterMaximumAttempts() throws Exception
+    {
+        final AdaptiveRetry retry = new AdaptiveRetry(
+                new AdaptiveThrottle(1000, scheduler, Runnable::run), scheduler, Runnable::run, 3, 1, 10);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        try
+        {
+            retry.execute(() -> {
+                attempts.incrementAndGet();
+                return failed(serviceException("InternalError", 500));
+            }).get(5, TimeUnit.SECONDS);
+            fail();
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+        }
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testThrottleDelaysCallsBeyondRate() throws Exception
+    {
+        final AdaptiveThrottle throttle = new AdaptiveThrottle(2, scheduler, Runnable::run);
+
+        assertTrue(throttle.acquire().isDone());
+        assertTrue(throttle.acquire().isDone());
+        final CompletableFuture<Void> delayed = throttle.acquire();
+        assertFalse(delayed.isDone());
+
+        delayed.get(5, TimeUnit.SECONDS);
+        assertEquals(1, throttle.getDelayedCount());
+    }
+
+    @Test
+    public void testConcurrentThrottlesDecreaseRateOnce() throws Exception
+    {
+        final AdaptiveThrottle throttle = new AdaptiveThrottle(1000, scheduler, Runnable::run);
+        final ExecutorService callers = Executors.newFixedThreadPool(8);
+        final CountDownLatch ready = new CountDownLatch(1);
+        try
+        {
+            final List<Future<?>> throttled = new ArrayList<>();
+            for(int i = 0; i < 32; i++)
+            {
+                throttled.add(callers.submit(() -> {
+                    ready.await();
+                    throttle.onThrottled();
+                    return null;
+                }));
+            }
+            ready.countDown();
+            for(final Future<?> future : throttled)
+            {
+                future.get(5, TimeUnit.SECONDS);
+            }
+        }
+        finally
+        {
+            callers.shutdownNow();
+        }
+
+        assertEquals(32, throttle.getThrottledCount());
+        assertTrue(throttle.getRate() >= 500);
+        assertTrue(throttle.getRate() < 600);
+    }
+
+    private static AmazonServiceException serviceException(final String errorCode, final int statusCode)
+    {
+        final AmazonServiceException exception = new AmazonServiceException(errorCode);
+        exception.setErrorCode(errorCode);
+        exception.setStatusCode(statusCode);
+        return exception;
+    }
+
+    private static <T> CompletableFuture<T> failed(final Throwable error)
+    {
+        final CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(error);
+        return failed;
+    }
+}
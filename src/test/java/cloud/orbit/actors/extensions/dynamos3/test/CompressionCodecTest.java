@@ -0,0 +1,75 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.Test;
+
+import cloud.orbit.actors.extensions.dynamos3.CompressionCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class CompressionCodecTest
+{
+    private static final byte[] TEST_DATA = new String(new char[100000]).replace("\0", "{\"name\":\"X\"},")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        for (final CompressionCodec codec : CompressionCodec.values())
+        {
+            final byte[] compressed = codec.compress(TEST_DATA, Deflater.DEFAULT_COMPRESSION);
+            assertArrayEquals(codec.name(), TEST_DATA, codec.decompress(compressed));
+        }
+    }
+
+    @Test
+    public void testCompressesRepetitiveData() throws Exception
+    {
+        for (final CompressionCodec codec : CompressionCodec.values())
+        {
+            if (codec != CompressionCodec.NONE)
+            {
+                assertTrue(codec.name(), codec.compress(TEST_DATA, Deflater.BEST_SPEED).length < TEST_DATA.length / 10);
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyData() throws Exception
+    {
+        for (final CompressionCodec codec : CompressionCodec.values())
+        {
+            assertArrayEquals(codec.name(), new byte[0], codec.decompress(codec.compress(new byte[0], Deflater.DEFAULT_COMPRESSION)));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.Test;
+
+import cloud.orbit.actors.extensions.dynamos3.ConcurrencyLimiter;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest
+{
+    @Test
+    public void testQueuesCallersBeyondLimit()
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 10, ConcurrencyLimiter.Policy.WAIT, Runnable::run);
+
+        assertTrue(limiter.acquire().isDone());
+        final CompletableFuture<Void> queued = limiter.acquire();
+        assertFalse(queued.isDone());
+        assertEquals(1, limiter.getQueueLength());
+
+        limiter.release();
+        assertTrue(queued.isDone());
+        assertEquals(1, limiter.getActiveCount());
+        assertEquals(0, limiter.getQueueLength());
+
+        limiter.release();
+        assertEquals(0, limiter.getActiveCount());
+        assertEquals(1, limiter.getMaximumQueueLength());
+    }
+
+    @Test
+    public void testRejectsOnceQueueIsFull()
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, ConcurrencyLimiter.Policy.WAIT, Runnable::run);
+
+        limiter.acquire();
+        limiter.acquire();
+        assertRejected(limiter.acquire());
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testFailFastRejectsWithoutQueueing()
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 10, ConcurrencyLimiter.Policy.FAIL_FAST, Runnable::run);
+
+        limiter.acquire();
+        assertRejected(limiter.acquire());
+        assertEquals(0, limiter.getQueueLength());
+    }
+
+    @Test
+    public void testSubmitReleasesWhenOperationCompletes() throws Exception
+    {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 10, ConcurrencyLimiter.Policy.WAIT, Runnable::run);
+
+        final CompletableFuture<String> operation = new CompletableFuture<>();
+        final CompletableFuture<String> first = limiter.submit(() -> operation);
+        final CompletableFuture<String> second = limiter.submit(() -> CompletableFuture.completedFuture("second"));
+        assertFalse(second.isDone());
+
+        operation.complete("first");
+        assertEquals("first", first.get());
+        assertEquals("second", second.get());
+        assertEquals(0, limiter.getActiveCount());
+    }
+
+    private void assertRejected(final CompletableFuture<Void> permit)
+    {
+        try
+        {
+            permit.get();
+            fail();
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        catch(InterruptedException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+import cloud.orbit.actors.extensions.dynamos3.AdaptiveThrottle;
+import cloud.orbit.actors.extensions.dynamos3.ConcurrencyLimiter;
+import cloud.orbit.actors.extensions.dynamos3.DynamoBatchReader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DynamoBatchReaderTest
+{
+    private static final String TABLE = "orbit";
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter("DynamoDB", 1, 100, ConcurrencyLimiter.Policy.WAIT, executor);
+    private final AdaptiveThrottle throttle = new AdaptiveThrottle(1000, scheduler, executor);
+    private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testGathersReadsIntoOneBatch() throws Exception
+    {
+        final DynamoBatchReader reader = new DynamoBatchReader(new RecordingDynamoDB(0), limiter, throttle, scheduler, executor, executor, 50);
+
+        final CompletableFuture<Item> first = reader.get(TABLE, "first");
+        final CompletableFuture<Item> second = reader.get(TABLE, "second");
+        final CompletableFuture<Item> missing = reader.get(TABLE, "missing");
+
+        assertEquals("first", first.get(5, TimeUnit.SECONDS).getString(DynamoDBUtils.FIELD_NAME_PRIMARY_ID));
+        assertEquals("second", second.get(5, TimeUnit.SECONDS).getString(DynamoDBUtils.FIELD_NAME_PRIMARY_ID));
+        assertNull(missing.get(5, TimeUnit.SECONDS));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testSharesKeyReadTwice() throws Exception
+    {
+        final DynamoBatchReader reader = new DynamoBatchReader(new RecordingDynamoDB(0), limiter, throttle, scheduler, executor, executor, 10);
+
+        final CompletableFuture<Item> first = reader.get(TABLE, "same");
+        final CompletableFuture<Item> second = reader.get(TABLE, "same");
+
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        assertNotNull(second.get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("same"), batches.get(0));
+    }
+
+    @Test
+    public void testRetriesUnprocessedKeys() throws Exception
+    {
+        final DynamoBatchReader reader = new DynamoBatchReader(new RecordingDynamoDB(1), limiter, throttle, scheduler, executor, executor, 10);
+
+        final CompletableFuture<Item> first = reader.get(TABLE, "first");
+        final CompletableFuture<Item> second = reader.get(TABLE, "second");
+
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        assertNotNull(second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, batches.size());
+        assertEquals(Collections.singletonList("first"), batches.get(1));
+        // Some keys were read, as when a response is capped by size, so the table is not taken to throttle
+        assertEquals(0, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void testBacksOffWhenNoKeyIsRead() throws Exception
+    {
+        final DynamoBatchReader reader = new DynamoBatchReader(new RecordingDynamoDB(1), limiter, throttle, scheduler, executor, executor, 10);
+
+        assertNotNull(reader.get(TABLE, "only").get(5, TimeUnit.SECONDS));
+
+        assertEquals(2, batches.size());
+        assertEquals(1, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void testBatchWaitsForPermit() throws Exception
+    {
+        final DynamoBatchReader reader = new DynamoBatchReader(new RecordingDynamoDB(0), limiter, throttle, scheduler, executor, executor, 10);
+        limiter.acquire().get();
+
+        final CompletableFuture<Item> read = reader.get(TABLE, "actor");
+        Thread.sleep(100);
+        assertFalse(read.isDone());
+        assertTrue(batches.isEmpty());
+
+        limiter.release();
+        assertNotNull(read.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Returns an item for every key but "missing", leaving the first key of the first
+     * {@code unprocessedBatches} batches unprocessed.
+     */
+    private class RecordingDynamoDB extends DynamoDB
+    {
+        private final AtomicInteger unprocessedBatches;
+
+        RecordingDynamoDB(final int unprocessedBatches)
+        {
+            super(new AmazonDynamoDBClient());
+            this.unprocessedBatches = new AtomicInteger(unprocessedBatches);
+        }
+
+        @Override
+        public BatchGetItemOutcome batchGetItem(final TableKeysAndAttributes... tableKeysAndAttributes)
+        {
+            final List<String> itemIds = new ArrayList<>();
+            for(final PrimaryKey key : tableKeysAndAttributes[0].getPrimaryKeys())
+            {
+                itemIds.add((String) key.getComponents().iterator().next().getValue());
+            }
+            batches.add(itemIds);
+
+            final boolean leaveUnprocessed = unprocessedBatches.getAndDecrement() > 0;
+            final List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for(final String itemId : itemIds)
+            {
+                if(!itemId.equals("missing") && !(leaveUnprocessed && itemId.equals(itemIds.get(0))))
+                {
+                    items.add(Collections.singletonMap(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, new AttributeValue(itemId)));
+                }
+            }
+
+            final BatchGetItemResult result = new BatchGetItemResult()
+                    .withResponses(Collections.singletonMap(TABLE, items));
+            if(leaveUnprocessed)
+            {
+                result.setUnprocessedKeys(Collections.singletonMap(TABLE, new KeysAndAttributes().withKeys(
+                        Collections.singletonMap(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, new AttributeValue(itemIds.get(0))))));
+            }
+            return new BatchGetItemOutcome(result);
+        }
+    }
+}
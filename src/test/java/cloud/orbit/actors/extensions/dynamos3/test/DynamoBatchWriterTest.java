@@ -0,0 +1,216 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+import cloud.orbit.actors.extensions.dynamos3.AdaptiveThrottle;
+import cloud.orbit.actors.extensions.dynamos3.ConcurrencyLimiter;
+import cloud.orbit.actors.extensions.dynamos3.DynamoBatchWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DynamoBatchWriterTest
+{
+    private static final String TABLE = "orbit";
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter("DynamoDB", 1, 100, ConcurrencyLimiter.Policy.WAIT, executor);
+    private final AdaptiveThrottle throttle = new AdaptiveThrottle(1000, scheduler, executor);
+    private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+    private final AtomicInteger fallbacks = new AtomicInteger();
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testGathersPutsIntoOneBatch() throws Exception
+    {
+        final DynamoBatchWriter writer = new DynamoBatchWriter(new RecordingDynamoDB(0), limiter, throttle, scheduler, executor, 50);
+
+        final List<CompletableFuture<Void>> results = new ArrayList<>();
+        for(int i = 0; i < 3; i++)
+        {
+            results.add(put(writer, "actor" + i));
+        }
+        for(final CompletableFuture<Void> result : results)
+        {
+            result.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(0, fallbacks.get());
+    }
+
+    @Test
+    public void testFullBatchIsSentWithoutWaiting() throws Exception
+    {
+        final DynamoBatchWriter writer = new DynamoBatchWriter(new RecordingDynamoDB(0), limiter, throttle, scheduler, executor, TimeUnit.HOURS.toMillis(1));
+
+        final List<CompletableFuture<Void>> results = new ArrayList<>();
+        for(int i = 0; i < DynamoBatchWriter.MAXIMUM_BATCH_SIZE; i++)
+        {
+            results.add(put(writer, "actor" + i));
+        }
+        results.get(0).get(5, TimeUnit.SECONDS);
+
+        assertEquals(DynamoBatchWriter.MAXIMUM_BATCH_SIZE, batches.get(0).size());
+    }
+
+    @Test
+    public void testRetriesUnprocessedItems() throws Exception
+    {
+        final DynamoBatchWriter writer = new DynamoBatchWriter(new RecordingDynamoDB(1), limiter, throttle, scheduler, executor, 10);
+
+        final CompletableFuture<Void> first = put(writer, "first");
+        final CompletableFuture<Void> second = put(writer, "second");
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, batches.size());
+        assertEquals(Collections.singletonList("first"), batches.get(1));
+        assertEquals(0, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void testBacksOffWhenNoItemIsWritten() throws Exception
+    {
+        final DynamoBatchWriter writer = new DynamoBatchWriter(new RecordingDynamoDB(1), limiter, throttle, scheduler, executor, 10);
+
+        put(writer, "only").get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, batches.size());
+        assertEquals(1, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void testBatchWaitsForPermit() throws Exception
+    {
+        final DynamoBatchWriter writer = new DynamoBatchWriter(new RecordingDynamoDB(0), limiter, throttle, scheduler, executor, 10);
+        limiter.acquire().get();
+
+        final CompletableFuture<Void> written = put(writer, "actor");
+        Thread.sleep(100);
+        assertFalse(written.isDone());
+        assertTrue(batches.isEmpty());
+
+        limiter.release();
+        written.get(5, TimeUnit.SECONDS);
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testFallsBackToSingleWritesWhenBatchFails() throws Exception
+    {
+        final DynamoBatchWriter writer = new DynamoBatchWriter(new RecordingDynamoDB(0)
+        {
+            @Override
+            public BatchWriteItemOutcome batchWriteItem(final TableWriteItems... tableWriteItems)
+            {
+                throw new ResourceNotFoundException("no table yet");
+            }
+        }, limiter, throttle, scheduler, executor, 10);
+
+        put(writer, "actor").get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, fallbacks.get());
+    }
+
+    private CompletableFuture<Void> put(final DynamoBatchWriter writer, final String itemId)
+    {
+        return writer.put(TABLE, itemId, new Item().withPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, itemId), () -> {
+            fallbacks.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Records batches, leaving the first item of the first {@code unprocessedBatches} batches unprocessed.
+     */
+    private class RecordingDynamoDB extends DynamoDB
+    {
+        private final AtomicInteger unprocessedBatches;
+
+        RecordingDynamoDB(final int unprocessedBatches)
+        {
+            super(new AmazonDynamoDBClient());
+            this.unprocessedBatches = new AtomicInteger(unprocessedBatches);
+        }
+
+        @Override
+        public BatchWriteItemOutcome batchWriteItem(final TableWriteItems... tableWriteItems)
+        {
+            final List<String> itemIds = new ArrayList<>();
+            for(final Item item : tableWriteItems[0].getItemsToPut())
+            {
+                itemIds.add(item.getString(DynamoDBUtils.FIELD_NAME_PRIMARY_ID));
+            }
+            batches.add(itemIds);
+
+            final BatchWriteItemResult result = new BatchWriteItemResult();
+            if(unprocessedBatches.getAndDecrement() > 0)
+            {
+                final WriteRequest unprocessed = new WriteRequest(new PutRequest(Collections.singletonMap(
+                        DynamoDBUtils.FIELD_NAME_PRIMARY_ID, new AttributeValue(itemIds.get(0)))));
+                result.setUnprocessedItems(Collections.singletonMap(TABLE, Collections.singletonList(unprocessed)));
+            }
+            return new BatchWriteItemOutcome(result);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+import cloud.orbit.actors.extensions.dynamos3.ChunkManifest;
+import cloud.orbit.actors.extensions.dynamos3.CompressionCodec;
+import cloud.orbit.actors.extensions.dynamos3.DynamoChunkStore;
+import cloud.orbit.actors.extensions.dynamos3.DynamoDBS3Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class DynamoChunkStoreTest
+{
+    private static final String TABLE = "orbit";
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "retrier"));
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSplitsAndJoins()
+    {
+        final byte[] payload = "0123456789".getBytes();
+
+        final List<byte[]> chunks = DynamoChunkStore.split(payload, 4);
+
+        assertEquals(3, chunks.size());
+        assertEquals(2, chunks.get(2).length);
+        assertArrayEquals(payload, DynamoChunkStore.join(new ChunkManifest().withCount(3).withSize(payload.length), chunks));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testJoinFailsOnMissingChunk()
+    {
+        final List<byte[]> chunks = new ArrayList<>(DynamoChunkStore.split("0123456789".getBytes(), 4));
+        chunks.set(1, null);
+
+        DynamoChunkStore.join(new ChunkManifest().withCount(3).withSize(10), chunks);
+    }
+
+    @Test
+    public void testWritesReadsAndDeletes()
+    {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(false, false);
+        final DynamoChunkStore store = new DynamoChunkStore(dynamoDB, 1000, scheduler, executor);
+        final byte[] payload = new byte[250 * 1000 - 1];
+        new Random(7).nextBytes(payload);
+
+        final ChunkManifest manifest = store.write(TABLE, "item", payload, CompressionCodec.LZ4).join();
+
+        assertEquals(250, manifest.getCount());
+        assertEquals(CompressionCodec.LZ4, manifest.getCodec());
+        assertEquals(250, dynamoDB.items.size());
+        assertArrayEquals(payload, store.read(TABLE, "item", manifest).join());
+
+        store.delete(TABLE, "item", manifest).join();
+        assertTrue(dynamoDB.items.isEmpty());
+    }
+
+    @Test
+    public void testVersionsDoNotOverlap()
+    {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(false, false);
+        final DynamoChunkStore store = new DynamoChunkStore(dynamoDB, 4, scheduler, executor);
+
+        final ChunkManifest first = store.write(TABLE, "item", "first state".getBytes(), null).join();
+        final ChunkManifest second = store.write(TABLE, "item", "second state".getBytes(), null).join();
+        store.delete(TABLE, "item", first).join();
+
+        assertNotEquals(first.getVersion(), second.getVersion());
+        assertArrayEquals("second state".getBytes(), store.read(TABLE, "item", second).join());
+    }
+
+    @Test
+    public void testReadsKeysLeftUnprocessed()
+    {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(true, false);
+        final DynamoChunkStore store = new DynamoChunkStore(dynamoDB, 10, scheduler, executor);
+        final byte[] payload = new byte[95];
+        new Random(3).nextBytes(payload);
+
+        final ChunkManifest manifest = store.write(TABLE, "item", payload, null).join();
+
+        assertArrayEquals(payload, store.read(TABLE, "item", manifest).join());
+        assertTrue(dynamoDB.leftUnprocessed.get());
+    }
+
+    @Test
+    public void testRetriesThrottledWritesOnExecutor()
+    {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(false, true);
+        final DynamoChunkStore store = new DynamoChunkStore(dynamoDB, 4, scheduler, executor);
+
+        final ChunkManifest manifest = store.write(TABLE, "item", "throttled state".getBytes(), null).join();
+
+        assertArrayEquals("throttled state".getBytes(), store.read(TABLE, "item", manifest).join());
+        // The caller is not held up by the back off, which is waited out on the scheduler
+        assertEquals("retrier", dynamoDB.retriedOn.get());
+    }
+
+    @Test
+    public void testReadOfReplacedVersionCompletesWithNull()
+    {
+        final InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB(false, false);
+        final DynamoChunkStore store = new DynamoChunkStore(dynamoDB, 4, scheduler, executor);
+        final ChunkManifest first = store.write(TABLE, "item", "first state".getBytes(), null).join();
+
+        // A write replaces the state after its manifest was read, but before its chunks are
+        dynamoDB.beforeRead.set(() -> {
+            store.write(TABLE, "item", "second state".getBytes(), null).join();
+            store.delete(TABLE, "item", first).join();
+        });
+
+        assertNull(store.read(TABLE, "item", first).join());
+    }
+
+    /**
+     * Keeps chunk items in a map. Optionally answers the first read with only its first key, as DynamoDB does
+     * once a response reaches its size limit, or the first write with none of its items written, as DynamoDB
+     * does when it throttles. Runs whatever is set in {@code beforeRead} once, ahead of the next read.
+     */
+    private static class InMemoryDynamoDB extends DynamoDB
+    {
+        private final Map<String, byte[]> items = new ConcurrentHashMap<>();
+        private final boolean leaveUnprocessed;
+        private final boolean throttleWrite;
+        private final AtomicBoolean leftUnprocessed = new AtomicBoolean();
+        private final AtomicBoolean throttled = new AtomicBoolean();
+        private final AtomicReference<String> retriedOn = new AtomicReference<>();
+        private final AtomicReference<Runnable> beforeRead = new AtomicReference<>();
+
+        InMemoryDynamoDB(final boolean leaveUnprocessed, final boolean throttleWrite)
+        {
+            super(new AmazonDynamoDBClient());
+            this.leaveUnprocessed = leaveUnprocessed;
+            this.throttleWrite = throttleWrite;
+        }
+
+        @Override
+        public BatchWriteItemOutcome batchWriteItem(final TableWriteItems... tableWriteItems)
+        {
+            assertTrue(tableWriteItems[0].getItemsToPut() == null || tableWriteItems[0].getItemsToPut().size() <= 25);
+            if(throttleWrite && tableWriteItems[0].getItemsToPut() != null && throttled.compareAndSet(false, true))
+            {
+                final List<WriteRequest> unprocessed = new ArrayList<>();
+                for(final Item item : tableWriteItems[0].getItemsToPut())
+                {
+                    final Map<String, AttributeValue> attributes = new HashMap<>();
+                    attributes.put(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, new AttributeValue(item.getString(DynamoDBUtils.FIELD_NAME_PRIMARY_ID)));
+                    attributes.put(DynamoDBS3Utils.FIELD_NAME_CHUNK, new AttributeValue().withB(ByteBuffer.wrap(item.getBinary(DynamoDBS3Utils.FIELD_NAME_CHUNK))));
+                    unprocessed.add(new WriteRequest().withPutRequest(new PutRequest().withItem(attributes)));
+                }
+                return new BatchWriteItemOutcome(new BatchWriteItemResult()
+                        .withUnprocessedItems(Collections.singletonMap(TABLE, unprocessed)));
+            }
+            if(tableWriteItems[0].getItemsToPut() != null)
+            {
+                for(final Item item : tableWriteItems[0].getItemsToPut())
+                {
+                    items.put(item.getString(DynamoDBUtils.FIELD_NAME_PRIMARY_ID), item.getBinary(DynamoDBS3Utils.FIELD_NAME_CHUNK));
+                }
+            }
+            if(tableWriteItems[0].getPrimaryKeysToDelete() != null)
+            {
+                for(final PrimaryKey key : tableWriteItems[0].getPrimaryKeysToDelete())
+                {
+                    items.remove((String) key.getComponents().iterator().next().getValue());
+                }
+            }
+            return new BatchWriteItemOutcome(new BatchWriteItemResult().withUnprocessedItems(Collections.emptyMap()));
+        }
+
+        @Override
+        public BatchWriteItemOutcome batchWriteItemUnprocessed(final Map<String, List<WriteRequest>> unprocessedItems)
+        {
+            retriedOn.set(Thread.currentThread().getName());
+            for(final WriteRequest request : unprocessedItems.get(TABLE))
+            {
+                final Map<String, AttributeValue> item = request.getPutRequest().getItem();
+                items.put(item.get(DynamoDBUtils.FIELD_NAME_PRIMARY_ID).getS(), item.get(DynamoDBS3Utils.FIELD_NAME_CHUNK).getB().array());
+            }
+            return new BatchWriteItemOutcome(new BatchWriteItemResult().withUnprocessedItems(Collections.emptyMap()));
+        }
+
+        @Override
+        public BatchGetItemOutcome batchGetItem(final TableKeysAndAttributes... tableKeysAndAttributes)
+        {
+            final Runnable interleaved = beforeRead.getAndSet(null);
+            if(interleaved != null)
+            {
+                interleaved.run();
+            }
+
+            final List<String> itemIds = new ArrayList<>();
+            for(final PrimaryKey key : tableKeysAndAttributes[0].getPrimaryKeys())
+            {
+                itemIds.add((String) key.getComponents().iterator().next().getValue());
+            }
+            assertTrue(itemIds.size() <= 100);
+
+            if(leaveUnprocessed && leftUnprocessed.compareAndSet(false, true))
+            {
+                final List<Map<String, AttributeValue>> unprocessed = new ArrayList<>();
+                for(final String itemId : itemIds.subList(1, itemIds.size()))
+                {
+                    unprocessed.add(Collections.singletonMap(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, new AttributeValue(itemId)));
+                }
+                final BatchGetItemResult result = respond(itemIds.subList(0, 1));
+                result.setUnprocessedKeys(Collections.singletonMap(TABLE, new KeysAndAttributes().withKeys(unprocessed)));
+                return new BatchGetItemOutcome(result);
+            }
+
+            return new BatchGetItemOutcome(respond(itemIds));
+        }
+
+        @Override
+        public BatchGetItemOutcome batchGetItemUnprocessed(final Map<String, KeysAndAttributes> unprocessedKeys)
+        {
+            final List<String> itemIds = new ArrayList<>();
+            for(final Map<String, AttributeValue> key : unprocessedKeys.get(TABLE).getKeys())
+            {
+                itemIds.add(key.get(DynamoDBUtils.FIELD_NAME_PRIMARY_ID).getS());
+            }
+            return new BatchGetItemOutcome(respond(itemIds));
+        }
+
+        private BatchGetItemResult respond(final List<String> itemIds)
+        {
+            final List<Map<String, AttributeValue>> found = new ArrayList<>();
+            for(final String itemId : itemIds)
+            {
+                final byte[] chunk = items.get(itemId);
+                if(chunk != null)
+                {
+                    final Map<String, AttributeValue> item = new HashMap<>();
+                    item.put(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, new AttributeValue(itemId));
+                    item.put(DynamoDBS3Utils.FIELD_NAME_CHUNK, new AttributeValue().withB(ByteBuffer.wrap(chunk)));
+                    found.add(item);
+                }
+            }
+            return new BatchGetItemResult().withResponses(Collections.singletonMap(TABLE, found));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+import cloud.orbit.actors.extensions.dynamos3.AdaptiveRetry;
+import cloud.orbit.actors.extensions.dynamos3.AdaptiveThrottle;
+import cloud.orbit.actors.extensions.dynamos3.DynamoDBS3Utils;
+import cloud.orbit.actors.extensions.dynamos3.DynamoItemSwitch;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DynamoItemSwitchTest
+{
+    private static final String TABLE = "orbit";
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testReplacesExpectedState()
+    {
+        final InMemoryDynamoDBClient client = new InMemoryDynamoDBClient();
+        final DynamoItemSwitch itemSwitch = new DynamoItemSwitch(new DynamoDB(client));
+        itemSwitch.replace(TABLE, item("first", "s3://bucket/first"), null);
+
+        final Item replaced = itemSwitch.replace(TABLE, item("second", "s3://bucket/second"), "first");
+
+        assertEquals("s3://bucket/first", replaced.getString(DynamoDBS3Utils.FIELD_NAME_S3_LOCATION));
+        assertEquals("s3://bucket/second", client.location());
+    }
+
+    @Test
+    public void testRejectsStateWrittenConcurrently()
+    {
+        final InMemoryDynamoDBClient client = new InMemoryDynamoDBClient();
+        final DynamoItemSwitch itemSwitch = new DynamoItemSwitch(new DynamoDB(client));
+        itemSwitch.replace(TABLE, item("first", "s3://bucket/first"), null);
+        itemSwitch.replace(TABLE, item("other", "s3://bucket/other"), "first");
+
+        try
+        {
+            itemSwitch.replace(TABLE, item("second", "s3://bucket/second"), "first");
+            fail();
+        }
+        catch(ConditionalCheckFailedException e)
+        {
+            assertEquals("s3://bucket/other", client.location());
+        }
+    }
+
+    @Test
+    public void testRetryAfterLostResponseSucceeds() throws Exception
+    {
+        final InMemoryDynamoDBClient client = new InMemoryDynamoDBClient();
+        final DynamoItemSwitch itemSwitch = new DynamoItemSwitch(new DynamoDB(client));
+        final AdaptiveRetry retry = new AdaptiveRetry(
+                new AdaptiveThrottle(1000, scheduler, Runnable::run), scheduler, Runnable::run, 5, 1, 10);
+        itemSwitch.replace(TABLE, item("first", "s3://bucket/first"), null);
+
+        client.loseResponses.set(1);
+        retry.execute(() -> {
+            try
+            {
+                return CompletableFuture.completedFuture(
+                        itemSwitch.replace(TABLE, item("second", "s3://bucket/second"), "first"));
+            }
+            catch(Exception e)
+            {
+                final CompletableFuture<Item> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, retry.getRetryCount());
+        assertEquals("s3://bucket/second", client.location());
+    }
+
+    @Test
+    public void testRetryAfterLostResponseStillRejectsOtherStates() throws Exception
+    {
+        final InMemoryDynamoDBClient client = new InMemoryDynamoDBClient();
+        final DynamoItemSwitch itemSwitch = new DynamoItemSwitch(new DynamoDB(client));
+        itemSwitch.replace(TABLE, item("first", "s3://bucket/first"), null);
+        itemSwitch.replace(TABLE, item("second", "s3://bucket/second"), "first");
+        itemSwitch.replace(TABLE, item("other", "s3://bucket/other"), "second");
+
+        try
+        {
+            // Repeating the earlier switch once someone else has moved on must not undo their state
+            itemSwitch.replace(TABLE, item("second", "s3://bucket/second"), "first");
+            fail();
+        }
+        catch(ConditionalCheckFailedException e)
+        {
+            assertEquals("s3://bucket/other", client.location());
+        }
+    }
+
+    private static Item item(final String stateHash, final String s3Location)
+    {
+        return new Item()
+                .withPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, "item")
+                .withString(DynamoDBS3Utils.FIELD_NAME_STATE_HASH, stateHash)
+                .withString(DynamoDBS3Utils.FIELD_NAME_S3_LOCATION, s3Location);
+    }
+
+    /**
+     * Keeps a single item. Conditions are taken to compare the state hash to any of the values given, and a
+     * number of responses can be lost after the put went through, as a timed out connection would.
+     */
+    private static class InMemoryDynamoDBClient extends AmazonDynamoDBClient
+    {
+        private final Map<String, Map<String, AttributeValue>> items = new ConcurrentHashMap<>();
+        private final AtomicInteger loseResponses = new AtomicInteger();
+
+        @Override
+        public synchronized PutItemResult putItem(final PutItemRequest request)
+        {
+            final String itemId = request.getItem().get(DynamoDBUtils.FIELD_NAME_PRIMARY_ID).getS();
+            final Map<String, AttributeValue> previous = items.get(itemId);
+
+            if(request.getConditionExpression() != null)
+            {
+                final AttributeValue stateHash = previous == null ? null : previous.get(DynamoDBS3Utils.FIELD_NAME_STATE_HASH);
+                if(stateHash == null || !request.getExpressionAttributeValues().containsValue(stateHash))
+                {
+                    throw new ConditionalCheckFailedException("The conditional request failed");
+                }
+            }
+
+            items.put(itemId, request.getItem());
+            if(loseResponses.getAndUpdate(n -> Math.max(0, n - 1)) > 0)
+            {
+                final AmazonServiceException lost = new AmazonServiceException("Response lost");
+                lost.setStatusCode(500);
+                throw lost;
+            }
+            return new PutItemResult().withAttributes(previous);
+        }
+
+        private String location()
+        {
+            return items.get("item").get(DynamoDBS3Utils.FIELD_NAME_S3_LOCATION).getS();
+        }
+    }
+}
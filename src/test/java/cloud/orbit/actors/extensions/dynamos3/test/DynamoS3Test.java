@@ -28,22 +28,52 @@
 
 package cloud.orbit.actors.extensions.dynamos3.test;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Assume;
 import org.junit.Test;
 
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import cloud.orbit.actors.Actor;
 import cloud.orbit.actors.Stage;
 import cloud.orbit.actors.extensions.dynamodb.DynamoDBConfiguration;
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBConnection;
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+import cloud.orbit.actors.extensions.dynamos3.CompressionCodec;
+import cloud.orbit.actors.extensions.dynamos3.DynamoDBS3Utils;
+import cloud.orbit.actors.extensions.dynamos3.DynamoS3DynamoStorageExtension;
+import cloud.orbit.actors.extensions.dynamos3.DynamoS3S3StorageExtension;
 import cloud.orbit.actors.extensions.dynamos3.DynamoS3StorageExtension;
+import cloud.orbit.actors.extensions.dynamos3.S3Location;
+import cloud.orbit.actors.extensions.dynamos3.StateTierHistory;
+import cloud.orbit.actors.extensions.dynamos3.StorageTier;
 import cloud.orbit.actors.extensions.s3.S3Configuration;
+import cloud.orbit.actors.extensions.s3.S3Connection;
+import cloud.orbit.actors.runtime.RemoteReference;
 import cloud.orbit.util.StringUtils;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 public class DynamoS3Test
 {
     protected static final String DEFAULT_TABLE_NAME = "orbit-ci-test";
     private static final String ACTOR_ID_SHORT = "ShortTestActor";
     private static final String ACTOR_ID_LONG = "LongTstActor";
+    private static final String ACTOR_ID_WRITE_BEHIND = "WriteBehindTestActor";
+    private static final String ACTOR_ID_THRESHOLD = "ThresholdTestActor";
+    private static final String ACTOR_ID_LEGACY = "LegacyTestActor";
+    private static final String ACTOR_ID_COMPRESSED = "CompressedTestActor";
+    private static final String ACTOR_ID_SHARDED = "ShardedTestActor";
 
     private static final String TEST_STRING_SHORT = "OrbitTestString1928374";
     private static final String TEST_STRING_LONG = new String(new char[9000000]).replace("\0", "X");
@@ -66,8 +96,17 @@ public class DynamoS3Test
         stage.bind();
     }
 
-    @Test
-    public void testDynamoS3()
+    @After
+    public void stopStage()
+    {
+        if(stage != null)
+        {
+            stage.stop().join();
+            stage = null;
+        }
+    }
+
+    private void createConfigurations()
     {
         Assume.assumeTrue(!StringUtils.equals(System.getenv("TRAVIS"), "true")
                 || StringUtils.equals(System.getenv("ORBIT_TEST_DYNAMOS3_ENABLED"), "true"));
@@ -87,8 +126,64 @@ public class DynamoS3Test
                 .withCredentialType(cloud.orbit.actors.extensions.s3.AmazonCredentialType.DEFAULT_PROVIDER_CHAIN)
                 .withRegion(awsRegion)
                 .build();
+    }
+
+    private String getTableName()
+    {
+        return StringUtils.defaultIfBlank(System.getenv("ORBIT_TEST_DYNAMO_TABLE"), DEFAULT_TABLE_NAME);
+    }
+
+    /**
+     * Reads the pointer to the S3 object holding the state of {@code actor} straight from its item, or returns
+     * {@code null} if the state is not stored in S3.
+     */
+    private S3Location readS3Location(final Actor actor) throws IOException
+    {
+        final DynamoDBConnection dynamoDBConnection = new DynamoDBConnection(dynamoDBConfiguration);
+        try
+        {
+            final Item item = dynamoDBConnection.getDynamoDB().getTable(getTableName()).getItem(
+                    DynamoDBUtils.FIELD_NAME_PRIMARY_ID,
+                    DynamoDBS3Utils.generateItemId((RemoteReference<?>) actor, TestActorImpl.State.class));
+            return item != null ? DynamoDBS3Utils.readS3Location(item, new ObjectMapper()) : null;
+        }
+        finally
+        {
+            dynamoDBConnection.getDynamoClient().shutdown();
+        }
+    }
+
+    private ObjectMetadata readS3Metadata(final S3Location s3Location)
+    {
+        final AmazonS3Client s3Client = new S3Connection(s3Configuration).getS3Client();
+        try
+        {
+            return s3Client.getObjectMetadata(s3Location.getBucketName(), s3Location.getItemName());
+        }
+        finally
+        {
+            s3Client.shutdown();
+        }
+    }
+
+    private boolean s3ObjectExists(final S3Location s3Location)
+    {
+        final AmazonS3Client s3Client = new S3Connection(s3Configuration).getS3Client();
+        try
+        {
+            return s3Client.doesObjectExist(s3Location.getBucketName(), s3Location.getItemName());
+        }
+        finally
+        {
+            s3Client.shutdown();
+        }
+    }
 
-        dynamoS3StorageExtension = new DynamoS3StorageExtension(dynamoDBConfiguration, s3Configuration);
+    private DynamoS3StorageExtension createExtension()
+    {
+        createConfigurations();
+
+        final DynamoS3StorageExtension dynamoS3StorageExtension = new DynamoS3StorageExtension(dynamoDBConfiguration, s3Configuration);
 
         final String bucketName = System.getenv("ORBIT_TEST_S3_BUCKET");
         if(StringUtils.isNotBlank(bucketName))
@@ -102,6 +197,14 @@ public class DynamoS3Test
             dynamoS3StorageExtension.setDefaultDynamoTableName(tableName);
         }
 
+        return dynamoS3StorageExtension;
+    }
+
+    @Test
+    public void testDynamoS3()
+    {
+        dynamoS3StorageExtension = createExtension();
+
         restartStage();
 
         Actor.getReference(TestActor.class, ACTOR_ID_SHORT).writeRecord(TEST_STRING_SHORT).join();
@@ -145,5 +248,218 @@ public class DynamoS3Test
         resultString = Actor.getReference(TestActor.class, ACTOR_ID_LONG).getRecord().join();
         Assert.assertNull(resultString);
     }
-}
 
+    @Test
+    public void testWriteBehind()
+    {
+        dynamoS3StorageExtension = createExtension();
+
+        restartStage();
+
+        final WriteBehindTestActor actor = Actor.getReference(WriteBehindTestActor.class, ACTOR_ID_WRITE_BEHIND);
+        actor.writeRecord(TEST_STRING_SHORT).join();
+        Assert.assertEquals(TEST_STRING_SHORT, actor.getRecord().join());
+
+        // Held back until the extension stops, which must persist it
+        restartStage();
+
+        Assert.assertEquals(TEST_STRING_SHORT, actor.getRecord().join());
+
+        // Large enough to be streamed into S3 from the snapshot
+        actor.writeRecord(TEST_STRING_LONG).join();
+
+        restartStage();
+
+        Assert.assertEquals(TEST_STRING_LONG, actor.getRecord().join());
+    }
+
+    @Test
+    public void testInjectedExtensions()
+    {
+        createConfigurations();
+
+        final DynamoS3DynamoStorageExtension dynamoDBStorageExtension = new DynamoS3DynamoStorageExtension(dynamoDBConfiguration);
+        dynamoDBStorageExtension.setDefaultTableName(StringUtils.defaultIfBlank(System.getenv("ORBIT_TEST_DYNAMO_TABLE"), DEFAULT_TABLE_NAME));
+
+        final DynamoS3S3StorageExtension s3StorageExtension = new DynamoS3S3StorageExtension(s3Configuration);
+        s3StorageExtension.setBucketName(StringUtils.defaultIfBlank(System.getenv("ORBIT_TEST_S3_BUCKET"), "orbit-bucket"));
+
+        dynamoS3StorageExtension = new DynamoS3StorageExtension(dynamoDBStorageExtension, s3StorageExtension);
+        // Only the injected extensions know where states live, a table set here must not be used
+        dynamoS3StorageExtension.setDefaultDynamoTableName(DEFAULT_TABLE_NAME + "-unused");
+
+        restartStage();
+
+        Actor.getReference(TestActor.class, ACTOR_ID_SHORT).writeRecord(TEST_STRING_SHORT).join();
+        Actor.getReference(TestActor.class, ACTOR_ID_LONG).writeRecord(TEST_STRING_LONG).join();
+
+        restartStage();
+
+        Assert.assertEquals(TEST_STRING_SHORT, Actor.getReference(TestActor.class, ACTOR_ID_SHORT).getRecord().join());
+        Assert.assertEquals(TEST_STRING_LONG, Actor.getReference(TestActor.class, ACTOR_ID_LONG).getRecord().join());
+
+        Actor.getReference(TestActor.class, ACTOR_ID_SHORT).clearAllState().join();
+        Actor.getReference(TestActor.class, ACTOR_ID_LONG).clearAllState().join();
+
+        restartStage();
+
+        Assert.assertNull(Actor.getReference(TestActor.class, ACTOR_ID_SHORT).getRecord().join());
+        Assert.assertNull(Actor.getReference(TestActor.class, ACTOR_ID_LONG).getRecord().join());
+    }
+
+    @Test
+    public void testRoutesAtInlineThreshold() throws Exception
+    {
+        dynamoS3StorageExtension = createExtension();
+
+        restartStage();
+
+        final String record = new String(new char[5000]).replace("\0", "X");
+
+        // Ids of the same length holding the same state make items of the same size
+        final TestActor measured = Actor.getReference(TestActor.class, ACTOR_ID_THRESHOLD + "1");
+        measured.writeRecord(record).join();
+        final StateTierHistory.Placement placement = dynamoS3StorageExtension.getTierHistory().getPlacement((RemoteReference<?>) measured);
+        Assert.assertEquals(StorageTier.DYNAMODB, placement.getTier());
+
+        dynamoS3StorageExtension.setInlineSizeThreshold(placement.getSize());
+        final TestActor atThreshold = Actor.getReference(TestActor.class, ACTOR_ID_THRESHOLD + "2");
+        atThreshold.writeRecord(record).join();
+
+        dynamoS3StorageExtension.setInlineSizeThreshold(placement.getSize() - 1);
+        final TestActor overThreshold = Actor.getReference(TestActor.class, ACTOR_ID_THRESHOLD + "3");
+        overThreshold.writeRecord(record).join();
+
+        Assert.assertNull(readS3Location(atThreshold));
+        Assert.assertNotNull(readS3Location(overThreshold));
+
+        restartStage();
+
+        Assert.assertEquals(record, atThreshold.getRecord().join());
+        Assert.assertEquals(record, overThreshold.getRecord().join());
+
+        measured.clearAllState().join();
+        atThreshold.clearAllState().join();
+        overThreshold.clearAllState().join();
+
+        restartStage();
+
+        Assert.assertNull(overThreshold.getRecord().join());
+    }
+
+    @Test
+    public void testCompressedS3States() throws Exception
+    {
+        createConfigurations();
+
+        final DynamoS3DynamoStorageExtension dynamoDBStorageExtension = new DynamoS3DynamoStorageExtension(dynamoDBConfiguration);
+        dynamoDBStorageExtension.setDefaultTableName(getTableName());
+
+        final DynamoS3S3StorageExtension s3StorageExtension = new DynamoS3S3StorageExtension(s3Configuration);
+        s3StorageExtension.setBucketName(StringUtils.defaultIfBlank(System.getenv("ORBIT_TEST_S3_BUCKET"), "orbit-bucket"));
+
+        dynamoS3StorageExtension = new DynamoS3StorageExtension(dynamoDBStorageExtension, s3StorageExtension);
+        dynamoS3StorageExtension.setS3CompressionCodec(CompressionCodec.GZIP);
+
+        restartStage();
+
+        // Stored the way states were before S3 compression: plain JSON, pointed to by bucket and key alone
+        final TestActor legacy = Actor.getReference(TestActor.class, ACTOR_ID_LEGACY);
+        final TestActorImpl.State legacyState = new TestActorImpl.State();
+        legacyState.record = TEST_STRING_LONG;
+        final DynamoS3StorageExtension.StateWrapper legacyWrapper = new DynamoS3StorageExtension.StateWrapper();
+        legacyWrapper.s3Location = new S3Location()
+                .withBucketName(s3StorageExtension.getBucketName())
+                .withS3ItemName(s3StorageExtension.generateDocumentId((RemoteReference<?>) legacy));
+        s3StorageExtension.writeState((RemoteReference<?>) legacy, legacyState).join();
+        dynamoDBStorageExtension.writeState((RemoteReference<?>) legacy, legacyWrapper, TestActorImpl.State.class).join();
+
+        final TestActor compressed = Actor.getReference(TestActor.class, ACTOR_ID_COMPRESSED);
+        compressed.writeRecord(TEST_STRING_LONG).join();
+
+        final S3Location s3Location = readS3Location(compressed);
+        Assert.assertEquals(CompressionCodec.GZIP, s3Location.getCodec());
+        final ObjectMetadata metadata = readS3Metadata(s3Location);
+        Assert.assertEquals(CompressionCodec.GZIP.name(), metadata.getUserMetaDataOf(DynamoDBS3Utils.METADATA_CODEC));
+        // A run of one character shrinks to a sliver of its size
+        Assert.assertTrue(metadata.getContentLength() < TEST_STRING_LONG.length() / 100);
+
+        restartStage();
+
+        Assert.assertEquals(TEST_STRING_LONG, legacy.getRecord().join());
+        Assert.assertEquals(TEST_STRING_LONG, compressed.getRecord().join());
+
+        // Written again, the legacy state is compressed too
+        legacy.writeRecord(TEST_STRING_LONG + TEST_STRING_SHORT).join();
+        Assert.assertEquals(CompressionCodec.GZIP, readS3Location(legacy).getCodec());
+
+        restartStage();
+
+        Assert.assertEquals(TEST_STRING_LONG + TEST_STRING_SHORT, legacy.getRecord().join());
+
+        legacy.clearAllState().join();
+        compressed.clearAllState().join();
+
+        restartStage();
+
+        Assert.assertNull(legacy.getRecord().join());
+        Assert.assertNull(compressed.getRecord().join());
+    }
+
+    @Test
+    public void testShardBuckets() throws Exception
+    {
+        final String shardBucketNames = System.getenv("ORBIT_TEST_S3_SHARD_BUCKETS");
+        Assume.assumeTrue(StringUtils.isNotBlank(shardBucketNames));
+        final List<String> shards = Arrays.asList(shardBucketNames.split(","));
+        Assume.assumeTrue(shards.size() > 1);
+
+        dynamoS3StorageExtension = createExtension();
+        dynamoS3StorageExtension.setS3BucketNames(shards);
+        dynamoS3StorageExtension.setInlineSizeThreshold(1000);
+
+        restartStage();
+
+        final String record = new String(new char[5000]).replace("\0", "X");
+        final List<TestActor> actors = new ArrayList<>();
+        final Set<String> usedShards = new HashSet<>();
+        for(int i = 0; i < 16; i++)
+        {
+            final TestActor actor = Actor.getReference(TestActor.class, ACTOR_ID_SHARDED + i);
+            actors.add(actor);
+            actor.writeRecord(record).join();
+
+            final S3Location s3Location = readS3Location(actor);
+            Assert.assertTrue(shards.contains(s3Location.getBucketName()));
+            Assert.assertTrue(s3ObjectExists(s3Location));
+            usedShards.add(s3Location.getBucketName());
+
+            // An actor keeps to its shard
+            actor.writeRecord(record + i).join();
+            Assert.assertEquals(s3Location.getBucketName(), readS3Location(actor).getBucketName());
+        }
+        Assert.assertEquals(new HashSet<>(shards), usedShards);
+
+        // States are read from wherever their pointers lead, even from buckets no longer written to
+        dynamoS3StorageExtension.setS3BucketNames(Collections.singletonList(shards.get(0)));
+
+        restartStage();
+
+        for(int i = 0; i < actors.size(); i++)
+        {
+            final TestActor actor = actors.get(i);
+            Assert.assertEquals(record + i, actor.getRecord().join());
+
+            final S3Location s3Location = readS3Location(actor);
+            actor.clearAllState().join();
+            Assert.assertFalse(s3ObjectExists(s3Location));
+        }
+
+        restartStage();
+
+        for(final TestActor actor : actors)
+        {
+            Assert.assertNull(actor.getRecord().join());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cloud.orbit.actors.extensions.dynamos3.ParallelRangeInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ParallelRangeInputStreamTest
+{
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testReassemblesRangesInOrder() throws Exception
+    {
+        final byte[] data = new byte[10007];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte) i;
+        }
+
+        final AtomicInteger fetches = new AtomicInteger();
+        final ParallelRangeInputStream.RangeFetcher fetcher = (start, end) -> {
+            fetches.incrementAndGet();
+            return Arrays.copyOfRange(data, (int) start, (int) end + 1);
+        };
+
+        try (InputStream in = new ParallelRangeInputStream(fetcher, executor, data.length, 1000, 3))
+        {
+            assertArrayEquals(data, readFully(in));
+        }
+
+        assertEquals(11, fetches.get());
+    }
+
+    @Test
+    public void testEmptyObject() throws Exception
+    {
+        try (InputStream in = new ParallelRangeInputStream((start, end) -> {
+            throw new AssertionError("Nothing to fetch");
+        }, executor, 0, 1000, 3))
+        {
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testPropagatesFetchFailure() throws Exception
+    {
+        try (InputStream in = new ParallelRangeInputStream((start, end) -> {
+            throw new IOException("Range unavailable");
+        }, executor, 100, 10, 2))
+        {
+            readFully(in);
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[333];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cloud.orbit.actors.extensions.dynamos3.ConcurrencyLimiter;
+import cloud.orbit.actors.extensions.dynamos3.RequestHedger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RequestHedgerTest
+{
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ConcurrencyLimiter limiter =
+            new ConcurrencyLimiter("S3", 2, 100, ConcurrencyLimiter.Policy.WAIT, Runnable::run);
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testHedgesSlowRequest() throws Exception
+    {
+        final RequestHedger hedger = new RequestHedger(0.95, 1.0, 10, limiter, scheduler);
+        final AtomicInteger copies = new AtomicInteger();
+
+        // The first copy never completes, the hedged one does
+        final String result = hedger.execute(() -> copies.incrementAndGet() == 1
+                ? new CompletableFuture<String>()
+                : CompletableFuture.completedFuture("hedged")).get(5, TimeUnit.SECONDS);
+
+        assertEquals("hedged", result);
+        assertEquals(1, hedger.getHedgeCount());
+        assertEquals(1, hedger.getHedgeWinCount());
+        assertEquals(0, limiter.getActiveCount());
+    }
+
+    @Test
+    public void testCancelsLosingCopy() throws Exception
+    {
+        final RequestHedger hedger = new RequestHedger(0.95, 1.0, 10, limiter, scheduler);
+        final CompletableFuture<String> slowCopy = new CompletableFuture<>();
+        final AtomicInteger copies = new AtomicInteger();
+
+        final String result = hedger.execute(() -> copies.incrementAndGet() == 1
+                ? slowCopy
+                : CompletableFuture.completedFuture("hedged")).get(5, TimeUnit.SECONDS);
+
+        assertEquals("hedged", result);
+        assertTrue(slowCopy.isCancelled());
+    }
+
+    @Test
+    public void testSkipsHedgeWithoutPermit() throws Exception
+    {
+        final ConcurrencyLimiter busy =
+                new ConcurrencyLimiter("S3", 1, 100, ConcurrencyLimiter.Policy.WAIT, Runnable::run);
+        final RequestHedger hedger = new RequestHedger(0.95, 1.0, 1, busy, scheduler);
+        final AtomicInteger copies = new AtomicInteger();
+
+        // The original request holds the only permit
+        busy.acquire().join();
+        final CompletableFuture<String> result = hedger.execute(() -> {
+            copies.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        Thread.sleep(50);
+
+        assertFalse(result.isDone());
+        assertEquals(1, copies.get());
+        assertEquals(0, hedger.getHedgeCount());
+        assertEquals(1, hedger.getSkippedHedgeCount());
+        assertEquals(1, busy.getActiveCount());
+    }
+
+    @Test
+    public void testHedgeWinsDoNotShrinkDelay() throws Exception
+    {
+        final ConcurrencyLimiter roomy =
+                new ConcurrencyLimiter("S3", 100, 100, ConcurrencyLimiter.Policy.WAIT, Runnable::run);
+        final RequestHedger hedger = new RequestHedger(0.5, 1.0, 20, roomy, scheduler);
+
+        // Every original stalls and every hedge answers at once, enough times for the delay to be recomputed
+        final List<CompletableFuture<String>> results = new ArrayList<>();
+        for(int i = 0; i < 64; i++)
+        {
+            final AtomicInteger copies = new AtomicInteger();
+            results.add(hedger.execute(() -> copies.incrementAndGet() == 1
+                    ? new CompletableFuture<String>()
+                    : CompletableFuture.completedFuture("hedged")));
+        }
+        for(final CompletableFuture<String> result : results)
+        {
+            assertEquals("hedged", result.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(64, hedger.getHedgeWinCount());
+        // The requests took at least the delay, however quick the hedges were
+        assertTrue(hedger.getDelayMillis() >= 20);
+    }
+
+    @Test
+    public void testDoesNotHedgeFastRequest() throws Exception
+    {
+        final RequestHedger hedger = new RequestHedger(0.95, 1.0, 10, limiter, scheduler);
+
+        assertEquals("fast", hedger.execute(() -> CompletableFuture.completedFuture("fast")).get());
+        Thread.sleep(50);
+
+        assertEquals(0, hedger.getHedgeCount());
+    }
+
+    @Test
+    public void testBudgetCapsHedges() throws Exception
+    {
+        final RequestHedger hedger = new RequestHedger(0.95, 0.0, 1, limiter, scheduler);
+
+        final CompletableFuture<String> first = hedger.execute(CompletableFuture::new);
+        final CompletableFuture<String> second = hedger.execute(CompletableFuture::new);
+        Thread.sleep(50);
+
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(1, hedger.getHedgeCount());
+    }
+
+    @Test
+    public void testFailsOnlyWhenEveryCopyFails() throws Exception
+    {
+        final RequestHedger hedger = new RequestHedger(0.95, 1.0, 10, limiter, scheduler);
+        final AtomicInteger copies = new AtomicInteger();
+
+        final CompletableFuture<String> slowCopy = new CompletableFuture<>();
+        final CompletableFuture<String> result = hedger.execute(() -> {
+            if(copies.incrementAndGet() == 1)
+            {
+                return slowCopy;
+            }
+            final CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("hedge failed"));
+            return failed;
+        });
+        Thread.sleep(50);
+        assertFalse(result.isDone());
+
+        slowCopy.complete("original");
+        assertEquals("original", result.get());
+    }
+}
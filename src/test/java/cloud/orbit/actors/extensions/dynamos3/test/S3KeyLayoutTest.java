@@ -0,0 +1,85 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cloud.orbit.actors.extensions.dynamos3.S3KeyLayout;
+import cloud.orbit.actors.extensions.dynamos3.S3Location;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class S3KeyLayoutTest
+{
+    @Test
+    public void testLegacyKeys()
+    {
+        assertEquals("TestActor/1/v1", S3KeyLayout.LEGACY.generateKey("TestActor/1", "v1"));
+    }
+
+    @Test
+    public void testHashPrefixedKeysKeepOneActorTogether()
+    {
+        final String first = S3KeyLayout.HASH_PREFIXED.generateKey("TestActor/1", "v1");
+        final String second = S3KeyLayout.HASH_PREFIXED.generateKey("TestActor/1", "v2");
+
+        assertTrue(first.endsWith("/TestActor/1/v1"));
+        assertEquals(S3KeyLayout.HASH_PREFIX_LENGTH + 1, first.indexOf("TestActor"));
+        assertEquals(first.substring(0, S3KeyLayout.HASH_PREFIX_LENGTH), second.substring(0, S3KeyLayout.HASH_PREFIX_LENGTH));
+    }
+
+    @Test
+    public void testHashPrefixedKeysSpreadActors()
+    {
+        final Set<String> prefixes = new HashSet<>();
+        for(int i = 0; i < 100; i++)
+        {
+            prefixes.add(S3KeyLayout.HASH_PREFIXED.generateKey("TestActor/" + i, "v").substring(0, S3KeyLayout.HASH_PREFIX_LENGTH));
+        }
+        assertTrue(prefixes.size() > 90);
+    }
+
+    @Test
+    public void testLayoutIsOptionalInPointers() throws Exception
+    {
+        final ObjectMapper mapper = new ObjectMapper();
+
+        final S3Location legacy = mapper.readValue("{\"bucketName\":\"orbit-bucket\",\"itemName\":\"TestActor/1\"}", S3Location.class);
+        assertNull(legacy.getKeyLayout());
+
+        final S3Location prefixed = mapper.readValue(mapper.writeValueAsString(
+                new S3Location().withBucketName("orbit-bucket").withKeyLayout(S3KeyLayout.HASH_PREFIXED)), S3Location.class);
+        assertEquals(S3KeyLayout.HASH_PREFIXED, prefixed.getKeyLayout());
+    }
+}
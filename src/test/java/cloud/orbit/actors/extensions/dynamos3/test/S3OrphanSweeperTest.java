@@ -0,0 +1,244 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cloud.orbit.actors.extensions.dynamodb.DynamoDBUtils;
+import cloud.orbit.actors.extensions.dynamos3.AdaptiveRetry;
+import cloud.orbit.actors.extensions.dynamos3.AdaptiveThrottle;
+import cloud.orbit.actors.extensions.dynamos3.ConcurrencyLimiter;
+import cloud.orbit.actors.extensions.dynamos3.DynamoDBS3Utils;
+import cloud.orbit.actors.extensions.dynamos3.S3Location;
+import cloud.orbit.actors.extensions.dynamos3.S3OrphanSweeper;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class S3OrphanSweeperTest
+{
+    private static final String BUCKET = "orbit-bucket";
+    private static final String TABLE = "orbit";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ConcurrencyLimiter s3Limiter =
+            new ConcurrencyLimiter("S3", 2, 100, ConcurrencyLimiter.Policy.WAIT, executor);
+    private final AdaptiveRetry s3Retry =
+            new AdaptiveRetry(new AdaptiveThrottle(1000, scheduler, executor), scheduler, executor, 3, 1, 10);
+    private final ConcurrencyLimiter dynamoLimiter =
+            new ConcurrencyLimiter("DynamoDB", 2, 100, ConcurrencyLimiter.Policy.WAIT, executor);
+    private final AdaptiveRetry dynamoRetry =
+            new AdaptiveRetry(new AdaptiveThrottle(1000, scheduler, executor), scheduler, executor, 3, 1, 10);
+    private final InMemoryS3 s3 = new InMemoryS3();
+    private final Map<String, Item> items = new ConcurrentHashMap<>();
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testDeletesObjectsNoItemPointsTo() throws Exception
+    {
+        final long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        s3.put("actor/current", old, "actor");
+        s3.put("actor/replaced", old, "actor");
+        s3.put("cleared/last", old, "cleared");
+        s3.put("actor/uploading", System.currentTimeMillis(), "actor");
+        s3.put("legacy", old, null);
+        items.put("actor", new Item()
+                .withPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, "actor")
+                .withJSON(DynamoDBS3Utils.FIELD_NAME_S3_LOCATION, mapper.writeValueAsString(
+                        new S3Location().withBucketName(BUCKET).withS3ItemName("actor/current"))));
+
+        final S3OrphanSweeper sweeper = new S3OrphanSweeper(
+                s3, new InMemoryDynamoDB(), mapper, s3Limiter, s3Retry, dynamoLimiter, dynamoRetry, executor, 2, TimeUnit.HOURS.toMillis(1), 2);
+
+        assertEquals(2, sweeper.sweep(BUCKET, null));
+        assertTrue(s3.objects.containsKey("actor/current"));
+        assertTrue(s3.objects.containsKey("actor/uploading"));
+        assertTrue(s3.objects.containsKey("legacy"));
+        assertFalse(s3.objects.containsKey("actor/replaced"));
+        assertFalse(s3.objects.containsKey("cleared/last"));
+        assertEquals(5, sweeper.getScannedCount());
+        assertEquals(1, sweeper.getUnownedCount());
+        assertEquals(0, sweeper.getFailedCount());
+        // Three pages listed, four objects old enough to look up and two of them deleted, all within the limits
+        assertEquals(9, s3Limiter.getAcquiredCount());
+        assertEquals(3, dynamoLimiter.getAcquiredCount());
+    }
+
+    @Test
+    public void testRetriesTransientFailures() throws Exception
+    {
+        s3.put("cleared/last", System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2), "cleared");
+        s3.failing.add("cleared/last");
+
+        final S3OrphanSweeper sweeper = new S3OrphanSweeper(
+                s3, new InMemoryDynamoDB(), mapper, s3Limiter, s3Retry, dynamoLimiter, dynamoRetry, executor,
+                2, TimeUnit.HOURS.toMillis(1), 10);
+
+        assertEquals(1, sweeper.sweep(BUCKET, null));
+        assertFalse(s3.objects.containsKey("cleared/last"));
+        assertEquals(1, s3Retry.getRetryCount());
+        assertEquals(0, sweeper.getFailedCount());
+    }
+
+    @Test
+    public void testEncodesItemIds() throws Exception
+    {
+        final String itemId = "Actor 1/\u00fc";
+        s3.put("odd", System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2), itemId);
+        items.put(itemId, new Item()
+                .withPrimaryKey(DynamoDBUtils.FIELD_NAME_PRIMARY_ID, itemId)
+                .withJSON(DynamoDBS3Utils.FIELD_NAME_S3_LOCATION, mapper.writeValueAsString(
+                        new S3Location().withBucketName(BUCKET).withS3ItemName("odd"))));
+
+        final S3OrphanSweeper sweeper = new S3OrphanSweeper(
+                s3, new InMemoryDynamoDB(), mapper, s3Limiter, s3Retry, dynamoLimiter, dynamoRetry, executor, 2, TimeUnit.HOURS.toMillis(1), 10);
+
+        assertEquals(0, sweeper.sweep(BUCKET, null));
+        assertTrue(s3.objects.containsKey("odd"));
+    }
+
+    /**
+     * Lists objects in key order, a page of {@code maxKeys} at a time.
+     */
+    private static class InMemoryS3 extends AmazonS3Client
+    {
+        private final TreeMap<String, ObjectMetadata> objects = new TreeMap<>();
+        private final Set<String> failing = ConcurrentHashMap.newKeySet();
+
+        synchronized void put(final String key, final long lastModified, final String itemId)
+        {
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setLastModified(new Date(lastModified));
+            if(itemId != null)
+            {
+                S3OrphanSweeper.addOwner(metadata, TABLE, itemId);
+            }
+            objects.put(key, metadata);
+        }
+
+        @Override
+        public synchronized ListObjectsV2Result listObjectsV2(final ListObjectsV2Request request)
+        {
+            // Continues after the last key listed, as S3 does, so deletes in between do not shift the pages
+            final List<String> keys = new ArrayList<>(request.getContinuationToken() != null
+                    ? objects.tailMap(request.getContinuationToken(), false).keySet()
+                    : objects.keySet());
+            final int end = Math.min(keys.size(), request.getMaxKeys());
+
+            final ListObjectsV2Result result = new ListObjectsV2Result();
+            for(final String key : keys.subList(0, end))
+            {
+                final S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setBucketName(request.getBucketName());
+                summary.setKey(key);
+                summary.setLastModified(objects.get(key).getLastModified());
+                result.getObjectSummaries().add(summary);
+            }
+            result.setTruncated(end < keys.size());
+            result.setNextContinuationToken(end > 0 ? keys.get(end - 1) : null);
+            return result;
+        }
+
+        @Override
+        public synchronized ObjectMetadata getObjectMetadata(final String bucketName, final String key)
+        {
+            if(failing.remove(key))
+            {
+                final AmazonS3Exception e = new AmazonS3Exception("Service unavailable");
+                e.setStatusCode(500);
+                throw e;
+            }
+            return objects.get(key);
+        }
+
+        @Override
+        public synchronized void deleteObject(final String bucketName, final String key)
+        {
+            objects.remove(key);
+        }
+    }
+
+    private class InMemoryDynamoDB extends DynamoDB
+    {
+        InMemoryDynamoDB()
+        {
+            super(new AmazonDynamoDBClient());
+        }
+
+        @Override
+        public Table getTable(final String tableName)
+        {
+            assertEquals(TABLE, tableName);
+            return new Table(new AmazonDynamoDBClient(), tableName)
+            {
+                @Override
+                public Item getItem(final GetItemSpec spec)
+                {
+                    final Map<String, Object> key = new HashMap<>();
+                    spec.getKeyComponents().forEach(component -> key.put(component.getName(), component.getValue()));
+                    return items.get((String) key.get(DynamoDBUtils.FIELD_NAME_PRIMARY_ID));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.util.IOUtils;
+
+import cloud.orbit.actors.extensions.dynamos3.DynamoDBS3Utils;
+import cloud.orbit.actors.extensions.dynamos3.S3PayloadCache;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class S3PayloadCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] payload = "{\"name\":\"large state\"}".getBytes(StandardCharsets.UTF_8);
+    private final String contentHash = DynamoDBS3Utils.contentHash(payload);
+
+    @Test
+    public void testServesPayloadByContentHash() throws Exception
+    {
+        final S3PayloadCache cache = new S3PayloadCache(1024);
+
+        assertNull(cache.get(contentHash));
+        cache.put(contentHash, payload);
+
+        try(InputStream in = cache.get(contentHash))
+        {
+            assertArrayEquals(payload, IOUtils.toByteArray(in));
+        }
+        assertNull(cache.diskStats());
+    }
+
+    @Test
+    public void testServesSpilledPayloadsLeftByPreviousRun() throws Exception
+    {
+        final Path directory = folder.newFolder().toPath();
+        Files.write(directory.resolve(contentHash), payload);
+        Files.write(directory.resolve(contentHash + "123.tmp"), payload);
+
+        final S3PayloadCache cache = new S3PayloadCache(1024, directory, 1024 * 1024);
+
+        try(InputStream in = cache.get(contentHash))
+        {
+            assertArrayEquals(payload, IOUtils.toByteArray(in));
+        }
+        assertFalse(Files.exists(directory.resolve(contentHash + "123.tmp")));
+        assertEquals(1, cache.diskStats().hitCount());
+    }
+
+    @Test
+    public void testDropsSpilledPayloadThatNoLongerMatchesItsHash() throws Exception
+    {
+        final Path directory = folder.newFolder().toPath();
+        Files.write(directory.resolve(contentHash), "{\"name\":\"damaged\"}".getBytes(StandardCharsets.UTF_8));
+
+        final S3PayloadCache cache = new S3PayloadCache(1024, directory, 1024 * 1024);
+
+        assertNull(cache.get(contentHash));
+        assertFalse(Files.exists(directory.resolve(contentHash)));
+        assertNull(cache.get(contentHash));
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.IOUtils;
+
+import cloud.orbit.actors.extensions.dynamos3.S3UploadOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class S3UploadOutputStreamTest
+{
+    private static final String BUCKET = "orbit-bucket";
+    private static final int PART_SIZE = S3UploadOutputStream.MINIMUM_PART_SIZE;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final InMemoryS3 s3 = new InMemoryS3();
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSmallObjectIsOnePut() throws Exception
+    {
+        final byte[] data = randomBytes(1000);
+
+        try (S3UploadOutputStream out = new S3UploadOutputStream(s3, BUCKET, "small", new ObjectMetadata(), PART_SIZE, executor, 3))
+        {
+            out.write(data);
+        }
+
+        assertArrayEquals(data, s3.objects.get("small"));
+        assertEquals(1, s3.puts.get());
+        assertEquals(0, s3.initiated.get());
+    }
+
+    @Test
+    public void testUploadsPartsInParallel() throws Exception
+    {
+        final byte[] data = randomBytes(PART_SIZE * 2 + PART_SIZE / 2);
+
+        final S3UploadOutputStream out = new S3UploadOutputStream(s3, BUCKET, "large", new ObjectMetadata(), PART_SIZE, executor, 3);
+        out.write(data, 0, 100);
+        out.write(data, 100, data.length - 100);
+        // Nothing is visible before the upload is completed
+        assertFalse(s3.objects.containsKey("large"));
+        out.close();
+
+        assertArrayEquals(data, s3.objects.get("large"));
+        assertEquals(data.length, out.getSize());
+        assertEquals(3, s3.uploadedParts.get());
+        assertEquals(0, s3.puts.get());
+        assertTrue(s3.uploads.isEmpty());
+    }
+
+    @Test
+    public void testUploadsPartsInOrderWithoutExecutor() throws Exception
+    {
+        final byte[] data = randomBytes(PART_SIZE + 1);
+
+        try (S3UploadOutputStream out = new S3UploadOutputStream(s3, BUCKET, "large", new ObjectMetadata(), PART_SIZE))
+        {
+            out.write(data);
+        }
+
+        assertArrayEquals(data, s3.objects.get("large"));
+        assertEquals(2, s3.uploadedParts.get());
+    }
+
+    @Test
+    public void testAbortsUploadWhenPartFails() throws Exception
+    {
+        s3.failingParts.add(2);
+        final byte[] data = randomBytes(PART_SIZE * 3);
+
+        final S3UploadOutputStream out = new S3UploadOutputStream(s3, BUCKET, "failed", new ObjectMetadata(), PART_SIZE, executor, 3);
+        out.write(data);
+        try
+        {
+            out.close();
+            fail("A failed part must fail the upload");
+        }
+        catch (AmazonServiceException e)
+        {
+            assertEquals("Part 2 failed", e.getErrorMessage());
+        }
+
+        assertFalse(s3.objects.containsKey("failed"));
+        assertEquals(1, s3.aborted.get());
+        assertTrue(s3.uploads.isEmpty());
+    }
+
+    @Test
+    public void testAbortDiscardsUpload() throws Exception
+    {
+        final S3UploadOutputStream out = new S3UploadOutputStream(s3, BUCKET, "discarded", new ObjectMetadata(), PART_SIZE, executor, 3);
+        out.write(randomBytes(PART_SIZE * 2));
+        out.abort();
+        // Closing after an abort writes nothing
+        out.close();
+
+        assertFalse(s3.objects.containsKey("discarded"));
+        assertEquals(1, s3.aborted.get());
+        assertTrue(s3.uploads.isEmpty());
+        try
+        {
+            out.write(1);
+            fail("An aborted stream must not take more data");
+        }
+        catch (IOException e)
+        {
+            // Expected
+        }
+    }
+
+    private static byte[] randomBytes(final int size)
+    {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Keeps objects and multipart uploads in memory, making them visible only once complete.
+     */
+    private static class InMemoryS3 extends AmazonS3Client
+    {
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+        private final Set<Integer> failingParts = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger puts = new AtomicInteger();
+        private final AtomicInteger initiated = new AtomicInteger();
+        private final AtomicInteger uploadedParts = new AtomicInteger();
+        private final AtomicInteger aborted = new AtomicInteger();
+
+        @Override
+        public PutObjectResult putObject(final String bucketName, final String key, final InputStream input, final ObjectMetadata metadata)
+        {
+            puts.incrementAndGet();
+            objects.put(key, read(input));
+            return new PutObjectResult();
+        }
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(final InitiateMultipartUploadRequest request)
+        {
+            initiated.incrementAndGet();
+            final String uploadId = request.getKey() + "-" + initiated.get();
+            uploads.put(uploadId, new ConcurrentHashMap<>());
+
+            final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(uploadId);
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(final UploadPartRequest request)
+        {
+            if (failingParts.contains(request.getPartNumber()))
+            {
+                throw new AmazonServiceException("Part " + request.getPartNumber() + " failed");
+            }
+            uploads.get(request.getUploadId()).put(request.getPartNumber(), read(request.getInputStream()));
+            uploadedParts.incrementAndGet();
+
+            final UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(final CompleteMultipartUploadRequest request)
+        {
+            final Map<Integer, byte[]> parts = new TreeMap<>(uploads.remove(request.getUploadId()));
+            assertEquals(parts.size(), request.getPartETags().size());
+
+            final ByteArrayOutputStream object = new ByteArrayOutputStream();
+            for (final PartETag partETag : request.getPartETags())
+            {
+                final byte[] part = parts.get(partETag.getPartNumber());
+                object.write(part, 0, part.length);
+            }
+            objects.put(request.getKey(), object.toByteArray());
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public void abortMultipartUpload(final AbortMultipartUploadRequest request)
+        {
+            aborted.incrementAndGet();
+            uploads.remove(request.getUploadId());
+        }
+
+        private static byte[] read(final InputStream input)
+        {
+            try
+            {
+                return IOUtils.toByteArray(input);
+            }
+            catch (IOException e)
+            {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.Test;
+
+import cloud.orbit.actors.extensions.dynamos3.SpillingOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class SpillingOutputStreamTest
+{
+    @Test
+    public void testStaysInMemoryUpToThreshold() throws Exception
+    {
+        final SpillingOutputStream out = new SpillingOutputStream(10, () -> {
+            throw new AssertionError("Should not spill");
+        });
+
+        out.write(new byte[]{ 1, 2, 3, 4, 5 });
+        out.write(new byte[]{ 6, 7, 8, 9, 10 });
+        out.close();
+
+        assertFalse(out.isSpilled());
+        assertEquals(10, out.size());
+        assertArrayEquals(new byte[]{ 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }, out.toByteArray());
+    }
+
+    @Test
+    public void testSpillsBufferedAndSubsequentData() throws Exception
+    {
+        final ByteArrayOutputStream overflow = new ByteArrayOutputStream();
+        final SpillingOutputStream out = new SpillingOutputStream(4, () -> overflow);
+
+        out.write(new byte[]{ 1, 2, 3 });
+        assertFalse(out.isSpilled());
+
+        out.write(new byte[]{ 4, 5 });
+        out.write(6);
+        out.close();
+
+        assertTrue(out.isSpilled());
+        assertEquals(6, out.size());
+        assertArrayEquals(new byte[]{ 1, 2, 3, 4, 5, 6 }, overflow.toByteArray());
+    }
+
+    @Test
+    public void testHashesDataWhetherOrNotItSpills() throws Exception
+    {
+        final byte[] data = { 1, 2, 3, 4, 5, 6 };
+        final byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+        final SpillingOutputStream buffered = new SpillingOutputStream(10, ByteArrayOutputStream::new, MessageDigest.getInstance("SHA-256"));
+        buffered.write(data);
+        assertArrayEquals(expected, buffered.digest());
+
+        final SpillingOutputStream spilled = new SpillingOutputStream(4, ByteArrayOutputStream::new, MessageDigest.getInstance("SHA-256"));
+        spilled.write(data, 0, 3);
+        spilled.write(data, 3, 3);
+        assertTrue(spilled.isSpilled());
+        assertArrayEquals(expected, spilled.digest());
+        // The digest is only completed once
+        assertArrayEquals(expected, spilled.digest());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSpilledDataIsNotAvailable() throws Exception
+    {
+        final SpillingOutputStream out = new SpillingOutputStream(1, ByteArrayOutputStream::new);
+        out.write(new byte[]{ 1, 2 });
+        out.toByteArray();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cloud.orbit.actors.extensions.dynamos3.StateFormat;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StateFormatTest
+{
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        for(final StateFormat format : StateFormat.values())
+        {
+            final ObjectMapper mapper = new ObjectMapper(format.createFactory());
+
+            final HelloDto dto = new HelloDto();
+            dto.setName("Hello \u00fc");
+            dto.setByteArray(new byte[]{ 1, 2, 3 });
+
+            final HelloDto read = mapper.readValue(mapper.writeValueAsBytes(dto), HelloDto.class);
+            assertEquals(format.name(), dto.getName(), read.getName());
+            assertTrue(format.name(), Arrays.equals(dto.getByteArray(), read.getByteArray()));
+        }
+    }
+
+    @Test
+    public void testBinaryFormatsAreSmaller() throws Exception
+    {
+        final HelloDto dto = new HelloDto();
+        dto.setName("Hello");
+        dto.setByteArray(new byte[1024]);
+
+        final int jsonSize = new ObjectMapper(StateFormat.JSON.createFactory()).writeValueAsBytes(dto).length;
+        assertTrue(new ObjectMapper(StateFormat.SMILE.createFactory()).writeValueAsBytes(dto).length < jsonSize);
+        assertTrue(new ObjectMapper(StateFormat.CBOR.createFactory()).writeValueAsBytes(dto).length < jsonSize);
+    }
+
+    @Test
+    public void testOnlyJsonIsStoredAsADocument()
+    {
+        assertFalse(StateFormat.JSON.isBinary());
+        assertTrue(StateFormat.SMILE.isBinary());
+        assertTrue(StateFormat.CBOR.isBinary());
+        assertEquals("application/json", StateFormat.JSON.getContentType());
+    }
+}
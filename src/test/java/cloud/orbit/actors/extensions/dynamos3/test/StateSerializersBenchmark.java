@@ -0,0 +1,141 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cloud.orbit.actors.extensions.dynamos3.StateFormat;
+import cloud.orbit.actors.extensions.dynamos3.StateSerializers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading and writing a state through a new reader or writer from the mapper on every call with the
+ * readers and writers {@link StateSerializers} builds once per state class. Run {@link #main(String[])} to
+ * include allocation rates from the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class StateSerializersBenchmark
+{
+    public static class BenchmarkState
+    {
+        private String name;
+        private List<String> entries;
+        private Map<String, Object> properties;
+    }
+
+    @Param({"1", "100"})
+    public int entryCount;
+
+    private StateSerializers serializers;
+    private ObjectMapper mapper;
+    private BenchmarkState state;
+    private byte[] serializedState;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        serializers = new StateSerializers();
+        mapper = StateSerializers.configureMapper(new ObjectMapper());
+
+        state = new BenchmarkState();
+        state.name = "benchmark";
+        state.entries = new ArrayList<>();
+        state.properties = new HashMap<>();
+        for (int i = 0; i < entryCount; i++)
+        {
+            state.entries.add("entry-" + i);
+            state.properties.put("property-" + i, i);
+        }
+
+        serializedState = mapper.writeValueAsBytes(state);
+    }
+
+    @Benchmark
+    public BenchmarkState readPerCall() throws IOException
+    {
+        final BenchmarkState read = new BenchmarkState();
+        mapper.readerForUpdating(read).readValue(serializedState);
+        return read;
+    }
+
+    @Benchmark
+    public BenchmarkState readPrebuilt() throws IOException
+    {
+        final BenchmarkState read = new BenchmarkState();
+        serializers.readerForUpdating(StateFormat.JSON, read).readValue(serializedState);
+        return read;
+    }
+
+    @Benchmark
+    public byte[] writePerCall() throws IOException
+    {
+        return mapper.writer().writeValueAsBytes(state);
+    }
+
+    @Benchmark
+    public byte[] writePrebuilt() throws IOException
+    {
+        return serializers.writerFor(StateFormat.JSON, BenchmarkState.class).writeValueAsBytes(state);
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(StateSerializersBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.Test;
+
+import cloud.orbit.actors.extensions.dynamos3.StateFormat;
+import cloud.orbit.actors.extensions.dynamos3.StateSerializers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StateSerializersTest
+{
+    public static class State
+    {
+        private String name;
+        private int count;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        final StateSerializers serializers = new StateSerializers();
+        for (final StateFormat format : StateFormat.values())
+        {
+            final State state = new State();
+            state.name = "state";
+            state.count = 3;
+
+            final byte[] serializedState = serializers.writerFor(format, State.class).writeValueAsBytes(state);
+
+            final State read = new State();
+            serializers.readerForUpdating(format, read).readValue(serializedState);
+            assertEquals(format.name(), "state", read.name);
+            assertEquals(format.name(), 3, read.count);
+        }
+    }
+
+    @Test
+    public void testReadersAreSharedSafely() throws Exception
+    {
+        final StateSerializers serializers = new StateSerializers();
+        final State first = new State();
+        final State second = new State();
+
+        serializers.readerForUpdating(StateFormat.JSON, first).readValue("{\"name\":\"first\",\"count\":1}");
+        serializers.readerForUpdating(StateFormat.JSON, second).readValue("{\"name\":\"second\"}");
+
+        assertEquals("first", first.name);
+        assertEquals(1, first.count);
+        assertEquals("second", second.name);
+        assertEquals(0, second.count);
+    }
+
+    @Test
+    public void testWritersAreReused()
+    {
+        final StateSerializers serializers = new StateSerializers();
+        assertSame(serializers.writerFor(StateFormat.SMILE, State.class), serializers.writerFor(StateFormat.SMILE, State.class));
+        assertNotSame(serializers.writerFor(StateFormat.SMILE, State.class), serializers.writerFor(StateFormat.CBOR, State.class));
+    }
+
+    @Test
+    public void testWritersLeaveTheTargetOpen() throws Exception
+    {
+        final StateSerializers serializers = new StateSerializers();
+        final boolean[] closed = new boolean[1];
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final OutputStream out = new OutputStream()
+        {
+            @Override
+            public void write(final int b) throws IOException
+            {
+                bytes.write(b);
+            }
+
+            @Override
+            public void close()
+            {
+                closed[0] = true;
+            }
+        };
+
+        final State state = new State();
+        state.name = "state";
+        serializers.writerFor(StateFormat.JSON, State.class).writeValue(out, state);
+
+        assertFalse(closed[0]);
+        assertTrue(Arrays.equals(serializers.getMapper(StateFormat.JSON).writeValueAsBytes(state), bytes.toByteArray()));
+    }
+
+    @Test
+    public void testReadersLeaveTheSourceOpen() throws Exception
+    {
+        final StateSerializers serializers = new StateSerializers();
+        final boolean[] closed = new boolean[1];
+        final InputStream in = new ByteArrayInputStream("{\"name\":\"state\"} ".getBytes("UTF-8"))
+        {
+            @Override
+            public void close()
+            {
+                closed[0] = true;
+            }
+        };
+
+        final State state = new State();
+        serializers.readerForUpdating(StateFormat.JSON, state).readValue(in);
+
+        assertEquals("state", state.name);
+        assertFalse(closed[0]);
+    }
+}
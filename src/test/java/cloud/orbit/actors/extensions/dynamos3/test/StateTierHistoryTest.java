@@ -0,0 +1,122 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.Test;
+
+import cloud.orbit.actors.Actor;
+import cloud.orbit.actors.extensions.dynamos3.StateTierHistory;
+import cloud.orbit.actors.extensions.dynamos3.StorageTier;
+import cloud.orbit.actors.runtime.RemoteReference;
+
+import static org.junit.Assert.*;
+
+public class StateTierHistoryTest
+{
+    private static final int THRESHOLD = 1000;
+
+    private final RemoteReference<?> reference = (RemoteReference<?>) Actor.getReference(TestActor.class, "history");
+    private final RemoteReference<?> otherReference = (RemoteReference<?>) Actor.getReference(TestActor.class, "other");
+
+    @Test
+    public void testRoutesBySizeWithoutHistory()
+    {
+        final StateTierHistory history = new StateTierHistory(100, 0.1);
+
+        assertEquals(StorageTier.DYNAMODB, history.chooseTier(reference, THRESHOLD, THRESHOLD));
+        assertEquals(StorageTier.S3, history.chooseTier(reference, THRESHOLD + 1, THRESHOLD));
+    }
+
+    @Test
+    public void testHysteresisKeepsShrinkingStateInS3()
+    {
+        final StateTierHistory history = new StateTierHistory(100, 0.1);
+        history.recordWrite(reference, StorageTier.S3, THRESHOLD + 100);
+
+        assertEquals(StorageTier.S3, history.chooseTier(reference, THRESHOLD - 50, THRESHOLD));
+        assertEquals(StorageTier.DYNAMODB, history.chooseTier(reference, THRESHOLD / 2, THRESHOLD));
+    }
+
+    @Test
+    public void testRejectionLowersThresholdForType()
+    {
+        final StateTierHistory history = new StateTierHistory(100, 0.1);
+        history.recordRejected(reference, THRESHOLD - 200);
+
+        assertEquals(StorageTier.S3, history.chooseTier(otherReference, THRESHOLD - 200, THRESHOLD));
+        assertEquals(StorageTier.DYNAMODB, history.chooseTier(otherReference, THRESHOLD - 201, THRESHOLD));
+    }
+
+    @Test
+    public void testRejectionIsForgottenAfterInlineWrites()
+    {
+        final StateTierHistory history = new StateTierHistory(100, 0.1);
+        history.recordRejected(reference, THRESHOLD - 200);
+
+        for(int i = 1; i < StateTierHistory.REJECTION_DECAY_WRITES; i++)
+        {
+            history.recordWrite(otherReference, StorageTier.DYNAMODB, THRESHOLD / 2);
+        }
+        assertEquals(StorageTier.S3, history.chooseTier(otherReference, THRESHOLD - 100, THRESHOLD));
+
+        history.recordWrite(otherReference, StorageTier.DYNAMODB, THRESHOLD / 2);
+        assertEquals(StorageTier.DYNAMODB, history.chooseTier(otherReference, THRESHOLD - 100, THRESHOLD));
+    }
+
+    @Test
+    public void testHabituallyLargeTypeAppliesHysteresisToNewActors()
+    {
+        final StateTierHistory history = new StateTierHistory(100, 0.1);
+        history.recordWrite(reference, StorageTier.S3, THRESHOLD * 2);
+
+        assertEquals(StorageTier.S3, history.chooseTier(otherReference, THRESHOLD - 50, THRESHOLD));
+    }
+
+    @Test
+    public void testForget()
+    {
+        final StateTierHistory history = new StateTierHistory(100, 0.1);
+        history.recordWrite(reference, StorageTier.DYNAMODB, 10);
+        assertNotNull(history.getPlacement(reference));
+
+        history.forget(reference);
+        assertNull(history.getPlacement(reference));
+    }
+
+    @Test
+    public void testKeepsLastStateHash()
+    {
+        final StateTierHistory history = new StateTierHistory(100, 0.1);
+        history.recordRead(reference, StorageTier.S3, "read");
+        assertEquals("read", history.getPlacement(reference).getStateHash());
+
+        history.recordWrite(reference, StorageTier.DYNAMODB, 10, "written");
+        assertEquals("written", history.getPlacement(reference).getStateHash());
+    }
+}
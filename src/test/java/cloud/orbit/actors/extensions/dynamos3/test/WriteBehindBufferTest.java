@@ -0,0 +1,268 @@
+/*
+ Copyright (C) 2016 Electronic Arts Inc.  All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions
+ are met:
+
+ 1.  Redistributions of source code must retain the above copyright
+     notice, this list of conditions and the following disclaimer.
+ 2.  Redistributions in binary form must reproduce the above copyright
+     notice, this list of conditions and the following disclaimer in the
+     documentation and/or other materials provided with the distribution.
+ 3.  Neither the name of Electronic Arts, Inc. ("EA") nor the names of
+     its contributors may be used to endorse or promote products derived
+     from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY ELECTRONIC ARTS AND ITS CONTRIBUTORS "AS IS" AND ANY
+ EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ DISCLAIMED. IN NO EVENT SHALL ELECTRONIC ARTS OR ITS CONTRIBUTORS BE LIABLE FOR ANY
+ DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package cloud.orbit.actors.extensions.dynamos3.test;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cloud.orbit.actors.Actor;
+import cloud.orbit.actors.extensions.dynamos3.WriteBehindBuffer;
+import cloud.orbit.actors.runtime.RemoteReference;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteBehindBufferTest
+{
+    private static final long WINDOW_MILLIS = 60000;
+
+    private final RemoteReference<?> reference = (RemoteReference<?>) Actor.getReference(TestActor.class, "behind");
+    private final RemoteReference<?> otherReference = (RemoteReference<?>) Actor.getReference(TestActor.class, "other");
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "flusher"));
+    private final List<Object> written = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCoalescesWritesOfSameActor() throws Exception
+    {
+        final WriteBehindBuffer buffer = new WriteBehindBuffer(this::record, scheduler, executor, WINDOW_MILLIS, 100, 3);
+
+        buffer.write(reference, "first", String.class).get();
+        buffer.write(reference, "second", String.class).get();
+        buffer.write(reference, "third", String.class).get();
+        assertTrue(written.isEmpty());
+        assertTrue(buffer.isPending(reference));
+
+        buffer.flushAll().get();
+
+        assertEquals(1, written.size());
+        assertEquals("third", written.get(0));
+        assertFalse(buffer.isPending(reference));
+        assertEquals(2, buffer.getStatistics().getCoalescedWriteCount());
+        assertEquals(1, buffer.getStatistics().getFlushCount());
+    }
+
+    @Test
+    public void testFullBufferWritesThrough() throws Exception
+    {
+        final WriteBehindBuffer buffer = new WriteBehindBuffer(this::record, scheduler, executor, WINDOW_MILLIS, 1, 3);
+
+        buffer.write(reference, "held", String.class).get();
+        buffer.write(otherReference, "through", String.class).get();
+
+        assertEquals(1, written.size());
+        assertEquals("through", written.get(0));
+        assertEquals(1, buffer.getDirtyCount());
+    }
+
+    @Test
+    public void testFailedFlushKeepsWritePending() throws Exception
+    {
+        final AtomicBoolean fail = new AtomicBoolean(true);
+        final WriteBehindBuffer buffer = new WriteBehindBuffer((reference, snapshot, stateClass) -> {
+            if(fail.getAndSet(false))
+            {
+                final CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("unavailable"));
+                return failed;
+            }
+            return record(reference, snapshot, stateClass);
+        }, scheduler, executor, WINDOW_MILLIS, 100, 3);
+
+        buffer.write(reference, "state", String.class).get();
+        assertTrue(buffer.flush(reference).isCompletedExceptionally());
+        assertTrue(buffer.isPending(reference));
+
+        buffer.flush(reference).get();
+        assertEquals("state", written.get(0));
+        assertEquals(1, buffer.getStatistics().getFailedFlushCount());
+    }
+
+    @Test
+    public void testDelayedFlushRunsOnExecutor() throws Exception
+    {
+        final CompletableFuture<String> flushThread = new CompletableFuture<>();
+        final WriteBehindBuffer buffer = new WriteBehindBuffer((reference, snapshot, stateClass) -> {
+            flushThread.complete(Thread.currentThread().getName());
+            return record(reference, snapshot, stateClass);
+        }, scheduler, executor, 10, 100, 3);
+
+        buffer.write(reference, "state", String.class).get();
+
+        assertEquals("flusher", flushThread.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDiscardDropsPendingWrite() throws Exception
+    {
+        final WriteBehindBuffer buffer = new WriteBehindBuffer(this::record, scheduler, executor, WINDOW_MILLIS, 100, 3);
+
+        buffer.write(reference, "state", String.class).get();
+        buffer.discard(reference).get();
+        buffer.flushAll().get();
+
+        assertTrue(written.isEmpty());
+    }
+
+    @Test
+    public void testDiscardStopsFailedFlushFromRetrying() throws Exception
+    {
+        final CompletableFuture<Void> inFlight = new CompletableFuture<>();
+        final WriteBehindBuffer buffer = new WriteBehindBuffer(
+                (reference, snapshot, stateClass) -> inFlight, scheduler, executor, WINDOW_MILLIS, 100, 3);
+
+        buffer.write(reference, "cleared", String.class).get();
+        final CompletableFuture<Void> flush = buffer.flush(reference);
+        final CompletableFuture<Void> discard = buffer.discard(reference);
+        inFlight.completeExceptionally(new IllegalStateException("unavailable"));
+
+        discard.get(5, TimeUnit.SECONDS);
+        assertTrue(flush.isCompletedExceptionally());
+        assertFalse(buffer.isPending(reference));
+        assertEquals(0, buffer.getDirtyCount());
+    }
+
+    @Test
+    public void testDropsWriteAfterMaximumAttempts() throws Exception
+    {
+        final WriteBehindBuffer buffer = new WriteBehindBuffer((reference, snapshot, stateClass) -> {
+            final CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("unavailable"));
+            return failed;
+        }, scheduler, executor, WINDOW_MILLIS, 100, 2);
+
+        buffer.write(reference, "state", String.class).get();
+        assertTrue(buffer.flush(reference).isCompletedExceptionally());
+        assertTrue(buffer.isPending(reference));
+        assertTrue(buffer.flush(reference).isCompletedExceptionally());
+        assertFalse(buffer.isPending(reference));
+        assertEquals(1, buffer.getStatistics().getDroppedWriteCount());
+
+        // Reported once, to the next caller
+        assertTrue(buffer.flushAll().isCompletedExceptionally());
+        buffer.flushAll().get();
+    }
+
+    @Test
+    public void testReportsDroppedWriteToNextWrite() throws Exception
+    {
+        final AtomicBoolean fail = new AtomicBoolean(true);
+        final WriteBehindBuffer buffer = new WriteBehindBuffer((reference, snapshot, stateClass) -> {
+            if(fail.get())
+            {
+                final CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("unavailable"));
+                return failed;
+            }
+            return record(reference, snapshot, stateClass);
+        }, scheduler, executor, WINDOW_MILLIS, 100, 1);
+
+        buffer.write(reference, "dropped", String.class).get();
+        assertTrue(buffer.flush(reference).isCompletedExceptionally());
+        fail.set(false);
+
+        assertTrue(buffer.write(reference, "newer", String.class).isCompletedExceptionally());
+        buffer.flushAll().get();
+
+        assertEquals(1, written.size());
+        assertEquals("newer", written.get(0));
+    }
+
+    @Test
+    public void testDrainRetriesFailedWrites() throws Exception
+    {
+        final AtomicInteger failures = new AtomicInteger(2);
+        final WriteBehindBuffer buffer = new WriteBehindBuffer((reference, snapshot, stateClass) -> {
+            if(failures.getAndDecrement() > 0)
+            {
+                final CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("unavailable"));
+                return failed;
+            }
+            return record(reference, snapshot, stateClass);
+        }, scheduler, executor, WINDOW_MILLIS, 100, 3);
+
+        buffer.write(reference, "state", String.class).get();
+        buffer.drain().get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, written.size());
+        assertFalse(buffer.isPending(reference));
+        assertEquals(2, buffer.getStatistics().getFailedFlushCount());
+    }
+
+    @Test
+    public void testDrainReportsWritesOutOfAttempts() throws Exception
+    {
+        final WriteBehindBuffer buffer = new WriteBehindBuffer((reference, snapshot, stateClass) -> {
+            final CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("unavailable"));
+            return failed;
+        }, scheduler, executor, WINDOW_MILLIS, 100, 2);
+
+        buffer.write(reference, "state", String.class).get();
+        buffer.write(otherReference, "other", String.class).get();
+        try
+        {
+            buffer.drain().get(5, TimeUnit.SECONDS);
+            fail();
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(0, buffer.getDirtyCount());
+        assertEquals(2, buffer.getStatistics().getDroppedWriteCount());
+        assertEquals(4, buffer.getStatistics().getFailedFlushCount());
+    }
+
+    private CompletableFuture<Void> record(final RemoteReference<?> reference, final Object snapshot, final Class<?> stateClass)
+    {
+        written.add(snapshot);
+        return CompletableFuture.completedFuture(null);
+    }
+}